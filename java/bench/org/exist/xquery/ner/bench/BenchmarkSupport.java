@@ -0,0 +1,135 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner.bench;
+
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.ner.LoadedClassifier;
+import org.exist.xquery.ner.ResultCache;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Test data and setup shared by the benchmarks. The benchmarks run without a database: classifiers
+ * are read from the file system and markup is written to a standalone {@link MemTreeBuilder}.
+ *
+ * System properties:
+ * <ul>
+ *     <li>ner.classifier: path to the serialized classifier (default:
+ *     resources/classifiers/english.all.3class.distsim.crf.ser.gz, which is not part of the
+ *     repository and has to be downloaded first)</li>
+ *     <li>ner.segmenter: directory containing the Chinese segmenter data, required by
+ *     {@link SegmenterBenchmark} only</li>
+ * </ul>
+ */
+public class BenchmarkSupport {
+
+    public final static String PARAGRAPH =
+            "The fate of Lehman Brothers, the beleaguered investment bank, hung in the balance on Sunday as " +
+            "Federal Reserve officials and the leaders of major financial institutions continued to gather in " +
+            "emergency meetings trying to complete a plan to rescue the stricken bank. Several possible plans " +
+            "emerged from the talks, held at the Federal Reserve Bank of New York and led by Timothy R. Geithner, " +
+            "the president of the New York Fed, and Treasury Secretary Henry M. Paulson Jr. ";
+
+    public final static String SHORT_TEXT = "John Smith flew from London to New York to meet the board of Acme Corporation.";
+
+    public final static String CHINESE_TEXT =
+            "\u6211\u4f4f\u5728\u7f8e\u56fd\u7ebd\u7ea6\u3002\u674e\u660e\u5728\u5317\u4eac\u5927\u5b66\u5de5\u4f5c\u3002";
+
+    public static File getClassifierFile() {
+        final File file = new File(System.getProperty("ner.classifier",
+                "resources/classifiers/english.all.3class.distsim.crf.ser.gz"));
+        if (!file.isFile()) {
+            throw new IllegalStateException("Classifier " + file.getAbsolutePath() + " not found. Set system " +
+                    "property ner.classifier to the path of a serialized classifier");
+        }
+        return file;
+    }
+
+    public static File getSegmenterDir() {
+        final String dir = System.getProperty("ner.segmenter");
+        if (dir == null) {
+            throw new IllegalStateException("Set system property ner.segmenter to the directory containing the " +
+                    "Chinese segmenter data");
+        }
+        return new File(dir);
+    }
+
+    /**
+     * Load the classifier and disable the result cache, so every invocation runs the classifier.
+     */
+    public static LoadedClassifier loadClassifier() throws Exception {
+        ResultCache.getInstance().setMaxSize(0);
+        final File file = getClassifierFile();
+        final long start = System.currentTimeMillis();
+        final CRFClassifier<CoreLabel> classifier = CRFClassifier.getClassifier(file);
+        return new LoadedClassifier(file.getAbsolutePath(), file.lastModified(), file, classifier,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * A text consisting of the sample paragraph repeated the given number of times.
+     */
+    public static String longText(int paragraphs) {
+        final StringBuilder buf = new StringBuilder(PARAGRAPH.length() * paragraphs);
+        for (int i = 0; i < paragraphs; i++) {
+            buf.append(PARAGRAPH);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * A TEI document with the given number of paragraphs. Some entities are interrupted by inline
+     * markup, so the block mode has something to do.
+     */
+    public static String teiDocument(int paragraphs) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("<TEI xmlns=\"http://www.tei-c.org/ns/1.0\"><teiHeader><fileDesc><titleStmt>")
+            .append("<title>Synthetic test document</title></titleStmt></fileDesc></teiHeader><text><body>");
+        for (int i = 0; i < paragraphs; i++) {
+            if (i % 10 == 0) {
+                buf.append("<div><head>Chapter ").append(i / 10 + 1).append("</head>");
+            }
+            buf.append("<p>").append(PARAGRAPH)
+                .append("Later, <hi rend=\"italic\">Timothy</hi> Geithner returned to <hi>New</hi> York.")
+                .append("<note>Reported by <persName>John Smith</persName>.</note></p>");
+            if (i % 10 == 9 || i == paragraphs - 1) {
+                buf.append("</div>");
+            }
+        }
+        buf.append("</body></text></TEI>");
+        return buf.toString();
+    }
+
+    public static int countTokens(List<List<CoreLabel>> out) {
+        int tokens = 0;
+        for (List<CoreLabel> sentence : out) {
+            tokens += sentence.size();
+        }
+        return tokens;
+    }
+
+    public static MemTreeBuilder newBuilder() {
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        return builder;
+    }
+}
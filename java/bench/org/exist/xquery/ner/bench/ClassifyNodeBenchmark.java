@@ -0,0 +1,80 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner.bench;
+
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.ner.LoadedClassifier;
+import org.exist.xquery.ner.NERContentFilter;
+import org.openjdk.jmh.annotations.*;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import javax.xml.parsers.SAXParserFactory;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks up a synthetic TEI document, classifying text node by text node or paragraph by paragraph.
+ * The document is parsed and passed through {@link NERContentFilter} into a {@link MemTreeBuilder},
+ * which is the work done by ner:classify-node without the database serializer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassifyNodeBenchmark {
+
+    @Param({"10", "200"})
+    public int paragraphs;
+
+    @Param({"text-nodes", "blocks"})
+    public String mode;
+
+    private LoadedClassifier classifier;
+    private String document;
+    private Set<String> blocks;
+    private SAXParserFactory factory;
+
+    @Setup
+    public void setup() throws Exception {
+        classifier = BenchmarkSupport.loadClassifier();
+        document = BenchmarkSupport.teiDocument(paragraphs);
+        blocks = "blocks".equals(mode) ? Collections.singleton("p") : null;
+        factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+    }
+
+    @Benchmark
+    public MemTreeBuilder classifyNode() throws Exception {
+        final MemTreeBuilder builder = BenchmarkSupport.newBuilder();
+        final NERContentFilter filter =
+                new NERContentFilter(classifier, null, blocks, new DocumentBuilderReceiver(builder, true));
+        final XMLReader reader = factory.newSAXParser().getXMLReader();
+        reader.setContentHandler(filter);
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler", filter);
+        reader.parse(new InputSource(new StringReader(document)));
+        builder.endDocument();
+        return builder;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner.bench;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.ner.EntityMarkup;
+import org.exist.xquery.ner.LoadedClassifier;
+import org.exist.xquery.value.FunctionReference;
+import org.exist.xquery.value.ValueSequence;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of ner:classify-string: the classifier alone and including the markup written
+ * by {@link EntityMarkup}, with and without a callback. The "tokens" counter reports tokens
+ * per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassifyStringBenchmark {
+
+    @Param({"short", "long"})
+    public String length;
+
+    private LoadedClassifier classifier;
+    private String text;
+    private FunctionReference callback;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Tokens {
+        public long tokens;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        classifier = BenchmarkSupport.loadClassifier();
+        text = "short".equals(length) ? BenchmarkSupport.SHORT_TEXT : BenchmarkSupport.longText(20);
+        // only used as a marker: CallbackMarkup does not evaluate it
+        callback = new FunctionReference(null);
+    }
+
+    @Benchmark
+    public List<List<CoreLabel>> classify(Tokens tokens) {
+        final List<List<CoreLabel>> out = classifier.getClassifier().classify(text);
+        tokens.tokens += BenchmarkSupport.countTokens(out);
+        return out;
+    }
+
+    @Benchmark
+    public void markup(Tokens tokens, Blackhole blackhole) throws Exception {
+        final MemTreeBuilder builder = BenchmarkSupport.newBuilder();
+        final ValueSequence result = new ValueSequence();
+        final List<List<CoreLabel>> out = classifier.getClassifier().classify(text);
+        new EntityMarkup(null, builder, new DocumentBuilderReceiver(builder)).write(out, result, null);
+        tokens.tokens += BenchmarkSupport.countTokens(out);
+        blackhole.consume(result);
+    }
+
+    @Benchmark
+    public void markupWithCallback(Tokens tokens, Blackhole blackhole) throws Exception {
+        final MemTreeBuilder builder = BenchmarkSupport.newBuilder();
+        final ValueSequence result = new ValueSequence();
+        final List<List<CoreLabel>> out = classifier.getClassifier().classify(text);
+        new CallbackMarkup(builder).write(out, result, callback);
+        tokens.tokens += BenchmarkSupport.countTokens(out);
+        blackhole.consume(result);
+    }
+
+    /**
+     * Measures the callback code path without evaluating an XQuery function: the callback
+     * writes the entity element itself.
+     */
+    static class CallbackMarkup extends EntityMarkup {
+
+        CallbackMarkup(MemTreeBuilder builder) {
+            super(null, builder, new DocumentBuilderReceiver(builder));
+        }
+
+        @Override
+        public void callback(FunctionReference callback, String tag, String content) {
+            startEntity(tag);
+            text(content);
+            endEntity();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner.bench;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.ner.EntityMarkup;
+import org.exist.xquery.ner.EntitySpan;
+import org.exist.xquery.ner.LoadedClassifier;
+import org.exist.xquery.ner.TextBlock;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes markup for a fixed, already classified text of {@link #TOKENS} tokens, so the classifier
+ * does not show up in the numbers. One operation is one token: run with "-prof gc" and
+ * gc.alloc.rate.norm reports the bytes allocated per token. "tokens" writes the classifier output
+ * directly (ner:classify-string, text node mode), "block" replays a text block interrupted by inline
+ * markup (block mode).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(MarkupBenchmark.TOKENS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MarkupBenchmark {
+
+    public final static int TOKENS = 1000;
+
+    private List<List<CoreLabel>> out;
+    private List<EntitySpan> spans;
+    private List<String> runs;
+
+    @Setup
+    public void setup() throws Exception {
+        final LoadedClassifier classifier = BenchmarkSupport.loadClassifier();
+        final List<List<CoreLabel>> full = classifier.classify(BenchmarkSupport.longText(100));
+        if (BenchmarkSupport.countTokens(full) < TOKENS) {
+            throw new IllegalStateException("Sample text is too short");
+        }
+        // cut the output after exactly TOKENS tokens
+        out = new ArrayList<>();
+        int remaining = TOKENS;
+        int end = 0;
+        for (List<CoreLabel> sentence : full) {
+            if (remaining == 0) {
+                break;
+            }
+            final List<CoreLabel> part = sentence.subList(0, Math.min(remaining, sentence.size()));
+            out.add(part);
+            remaining -= part.size();
+            end = part.get(part.size() - 1).endPosition();
+        }
+        final String text = BenchmarkSupport.longText(100).substring(0, end);
+        spans = EntitySpan.find(out);
+        // for the block mode, split the text into runs of 40 characters separated by inline elements
+        runs = new ArrayList<>();
+        for (int i = 0; i < text.length(); i += 40) {
+            runs.add(text.substring(i, Math.min(i + 40, text.length())));
+        }
+    }
+
+    @Benchmark
+    public MemTreeBuilder tokens() throws Exception {
+        final MemTreeBuilder builder = BenchmarkSupport.newBuilder();
+        new EntityMarkup(null, builder, new DocumentBuilderReceiver(builder, true)).write(out, null, null);
+        return builder;
+    }
+
+    @Benchmark
+    public MemTreeBuilder block() throws Exception {
+        final MemTreeBuilder builder = BenchmarkSupport.newBuilder();
+        final TextBlock block = new TextBlock();
+        for (String run : runs) {
+            block.addStartElement(() -> builder.startElement("", "hi", "hi", null));
+            block.addText(run);
+            block.addEndElement(builder::endElement);
+        }
+        block.write(spans, new EntityMarkup(null, builder, new DocumentBuilderReceiver(builder, true)), null);
+        return builder;
+    }
+}
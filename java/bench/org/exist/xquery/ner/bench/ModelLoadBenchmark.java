@@ -0,0 +1,66 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner.bench;
+
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to deserialize the classifier and run it once. The cold benchmark measures a single load
+ * in a fresh JVM, as seen by the first query after a restart. The warm benchmark repeats the load
+ * in the same JVM, so the JIT compiler has optimized the deserialization code.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ModelLoadBenchmark {
+
+    private File file;
+
+    @Setup
+    public void setup() {
+        file = BenchmarkSupport.getClassifierFile();
+    }
+
+    @Benchmark
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(5)
+    public CRFClassifier<CoreLabel> cold() throws Exception {
+        return load();
+    }
+
+    @Benchmark
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    public CRFClassifier<CoreLabel> warm() throws Exception {
+        return load();
+    }
+
+    private CRFClassifier<CoreLabel> load() throws Exception {
+        final CRFClassifier<CoreLabel> classifier = CRFClassifier.getClassifier(file);
+        classifier.classify(BenchmarkSupport.SHORT_TEXT);
+        return classifier;
+    }
+}
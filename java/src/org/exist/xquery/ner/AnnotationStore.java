@@ -0,0 +1,226 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.storage.DBBroker;
+import org.exist.storage.serializers.Serializer;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.serializer.SAXSerializer;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+import javax.xml.transform.OutputKeys;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Stores annotated documents into the database without building an in-memory copy first.
+ * The source is streamed through a {@link NERContentFilter} into a temporary file, which
+ * is then stored like any uploaded file. Memory use is thus proportional to the size of the
+ * current text node or block, not to the size of the document.
+ */
+public class AnnotationStore {
+
+    /**
+     * Something which can be serialized as a stream of SAX events, e.g. a node.
+     */
+    public interface Source {
+
+        void toSAX(ContentHandler handler) throws SAXException;
+    }
+
+    private AnnotationStore() {
+    }
+
+    /**
+     * Annotate the source and store the result into the given collection, which is created if
+     * it does not exist. Returns the path of the stored document.
+     */
+    public static XmldbURI store(DBBroker broker, LoadedClassifier classifier,
+                                 ChineseSegmenter segmenter, Set<String> blocks, Source source,
+                                 XmldbURI collectionUri, XmldbURI docName) throws XPathException {
+        return store(broker, classifier, segmenter, blocks, source, null, collectionUri, docName);
+    }
+
+    private static XmldbURI store(DBBroker broker, LoadedClassifier classifier, ChineseSegmenter segmenter,
+                                  Set<String> blocks, Source source, EntityIndex.Collector collector,
+                                  XmldbURI collectionUri, XmldbURI docName) throws XPathException {
+        return store(broker, serializer -> {
+            final NERContentFilter filter = new NERContentFilter(classifier, segmenter, blocks, serializer);
+            filter.setCollector(collector);
+            serializer.startDocument();
+            source.toSAX(filter);
+            filter.flush();
+            serializer.endDocument();
+        }, collectionUri, docName);
+    }
+
+    /**
+     * Store the list of entities found in the source into the given collection, see
+     * {@link EntityListHandler}. If collector is not null, the entities are reported to it as
+     * well. Returns the path of the stored document.
+     */
+    public static XmldbURI storeEntities(DBBroker broker, LoadedClassifier classifier, Set<String> blocks,
+                                         Source source, String sourcePath, EntityIndex.Collector collector,
+                                         XmldbURI collectionUri, XmldbURI docName) throws XPathException {
+        return store(broker, serializer -> {
+            final EntityListHandler handler = new EntityListHandler(classifier, blocks, serializer, sourcePath);
+            handler.setCollector(collector);
+            serializer.startDocument();
+            source.toSAX(handler);
+            serializer.endDocument();
+        }, collectionUri, docName);
+    }
+
+    /**
+     * Annotate a stored XML document and store the result at targetUri. If entities is true, the list
+     * of entities found in the document is stored instead of the annotated document. If collector is
+     * not null, the entities found are reported to it for indexing.
+     */
+    public static XmldbURI storeDocument(DBBroker broker, LoadedClassifier classifier, boolean entities,
+                                         Set<String> blocks, DocumentImpl doc, XmldbURI targetUri,
+                                         EntityIndex.Collector collector) throws XPathException {
+        final Source source = handler -> {
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            serializer.setSAXHandlers(handler, handler instanceof LexicalHandler ? (LexicalHandler) handler : null);
+            serializer.toSAX(doc);
+        };
+        if (entities) {
+            return storeEntities(broker, classifier, blocks, source, doc.getURI().toString(), collector,
+                    targetUri.removeLastSegment(), targetUri.lastSegment());
+        }
+        return store(broker, classifier, null, blocks, source, collector, targetUri.removeLastSegment(),
+                targetUri.lastSegment());
+    }
+
+    /**
+     * Map the path of a document below the source collection to the same relative path below
+     * the target collection.
+     */
+    public static XmldbURI getTargetPath(XmldbURI source, XmldbURI target, XmldbURI docUri) {
+        final String relative = docUri.getCollectionPath().substring(source.getCollectionPath().length());
+        return XmldbURI.createInternal(target.getCollectionPath() + relative);
+    }
+
+    /**
+     * True if the path is the collection itself or lies below it. Paths are compared by segment,
+     * so /db/data-out is not inside /db/data.
+     */
+    public static boolean isInCollection(XmldbURI path, XmldbURI collection) {
+        final String p = path.getCollectionPath();
+        String c = collection.getCollectionPath();
+        if (c.endsWith("/")) {
+            c = c.substring(0, c.length() - 1);
+        }
+        return p.equals(c) || p.startsWith(c + "/");
+    }
+
+    /**
+     * Delete the document at the given path, if it exists.
+     */
+    public static void remove(DBBroker broker, XmldbURI docUri) throws XPathException {
+        final TransactionManager transact = broker.getBrokerPool().getTransactionManager();
+        final Txn txn = transact.beginTransaction();
+        try {
+            final Collection collection = broker.getCollection(docUri.removeLastSegment());
+            if (collection != null && collection.getDocument(broker, docUri.lastSegment()) != null) {
+                collection.removeXMLResource(txn, broker, docUri.lastSegment());
+            }
+            transact.commit(txn);
+        } catch (Exception e) {
+            transact.abort(txn);
+            throw new XPathException("Error while removing annotated document " + docUri + ": " + e.getMessage());
+        } finally {
+            transact.close(txn);
+        }
+    }
+
+    private interface Output {
+
+        void write(SAXSerializer serializer) throws SAXException;
+    }
+
+    private static XmldbURI store(DBBroker broker, Output output, XmldbURI collectionUri, XmldbURI docName)
+            throws XPathException {
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("stanford-ner", ".xml");
+            write(output, tempFile);
+            store(broker, tempFile, collectionUri, docName);
+            return collectionUri.append(docName);
+        } catch (IOException e) {
+            throw new XPathException("Error while writing annotated document: " + e.getMessage());
+        } catch (SAXException e) {
+            throw new XPathException("Error while annotating document: " + e.getMessage());
+        } finally {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static void write(Output output, File file) throws IOException, SAXException {
+        final Properties outputProperties = new Properties();
+        outputProperties.setProperty(OutputKeys.ENCODING, "UTF-8");
+        outputProperties.setProperty(OutputKeys.INDENT, "no");
+        try (final Writer writer = new OutputStreamWriter(
+                new BufferedOutputStream(new FileOutputStream(file)), StandardCharsets.UTF_8)) {
+            output.write(new SAXSerializer(writer, outputProperties));
+        }
+    }
+
+    private static void store(DBBroker broker, File file, XmldbURI collectionUri, XmldbURI docName)
+            throws XPathException {
+        final TransactionManager transact = broker.getBrokerPool().getTransactionManager();
+        final Txn txn = transact.beginTransaction();
+        try {
+            final Collection collection = broker.getOrCreateCollection(txn, collectionUri);
+            broker.saveCollection(txn, collection);
+            final IndexInfo info = collection.validateXMLResource(txn, broker, docName, inputSource(file));
+            collection.store(txn, broker, info, inputSource(file));
+            transact.commit(txn);
+        } catch (Exception e) {
+            transact.abort(txn);
+            throw new XPathException("Error while storing annotated document " + collectionUri.append(docName) +
+                    ": " + e.getMessage());
+        } finally {
+            transact.close(txn);
+        }
+    }
+
+    private static InputSource inputSource(File file) {
+        return new InputSource(file.toURI().toASCIIString());
+    }
+}
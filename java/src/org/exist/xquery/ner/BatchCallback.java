@@ -0,0 +1,108 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.sequences.SeqClassifierFlags;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.List;
+
+/**
+ * Calls a callback function once for all entities of a text node or block instead of once
+ * per entity. The function receives a sequence of maps with the keys "type", "text" and
+ * "offset" and must return exactly one item per entity, in the same order. The items then
+ * replace the entities in the output (see {@link EntityMarkup#setReplacements}).
+ *
+ * Offsets refer to the text passed to the classifier. For Chinese, this is the output of the
+ * {@link ChineseSegmenter}, which has spaces inserted between words, not the original text.
+ */
+public class BatchCallback {
+
+    private final XQueryContext context;
+    private final FunctionReference callback;
+
+    public BatchCallback(XQueryContext context, FunctionReference callback) {
+        this.context = context;
+        this.callback = callback;
+    }
+
+    /**
+     * Call the function for the entities in the classifier output. Returns the items replacing
+     * the entities.
+     */
+    public Sequence evaluate(List<List<CoreLabel>> out) throws XPathException {
+        final ValueSequence entities = new ValueSequence();
+        final String background = SeqClassifierFlags.DEFAULT_BACKGROUND_SYMBOL;
+        final StringBuilder text = new StringBuilder();
+        for (List<CoreLabel> sentence : out) {
+            String type = background;
+            int start = 0;
+            for (CoreLabel word : sentence) {
+                final String tag = word.get(CoreAnnotations.AnswerAnnotation.class);
+                final String current = word.get(CoreAnnotations.OriginalTextAnnotation.class);
+                if (!tag.equals(type)) {
+                    if (!type.equals(background)) {
+                        entities.add(entity(type, text, start));
+                    }
+                    type = tag;
+                    start = word.beginPosition();
+                    text.setLength(0);
+                    text.append(current);
+                } else if (!type.equals(background)) {
+                    final String before = word.get(CoreAnnotations.BeforeAnnotation.class);
+                    if (before != null) {
+                        text.append(before);
+                    }
+                    text.append(current);
+                }
+            }
+            if (!type.equals(background)) {
+                entities.add(entity(type, text, start));
+            }
+        }
+        final int count = entities.getItemCount();
+        if (count == 0) {
+            return Sequence.EMPTY_SEQUENCE;
+        }
+        final long start = System.nanoTime();
+        try {
+            final Sequence result = callback.evalFunction(null, null, new Sequence[] { entities });
+            if (result.getItemCount() != count) {
+                throw new XPathException("The callback must return one item per entity: expected " + count +
+                        ", got " + result.getItemCount());
+            }
+            return result;
+        } finally {
+            Metrics.getInstance().time(Metrics.CALLBACK, start);
+        }
+    }
+
+    private MapType entity(String type, CharSequence text, int offset) throws XPathException {
+        final MapType map = new MapType(context);
+        map.add(new StringValue("type"), new StringValue(type));
+        map.add(new StringValue("text"), new StringValue(text.toString()));
+        map.add(new StringValue("offset"), new IntegerValue(offset));
+        return map;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.*;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Reports the state of the {@link ClassifierRegistry}.
+ */
+public class CacheStatistics extends BasicFunction {
+
+    public final static FunctionSignature signature =
+        new FunctionSignature(
+            new QName("classifier-cache", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Report the classifiers currently held in memory, the memory budget and the " +
+            "hit/miss/load time counters of the classifier cache.",
+            new SequenceType[0],
+            new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                "An element describing the classifier cache")
+        );
+
+    public CacheStatistics(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final ClassifierRegistry registry = ClassifierRegistry.getInstance();
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            AttributesImpl attribs = new AttributesImpl();
+            addAttribute(attribs, "budget", registry.getBudget());
+            addAttribute(attribs, "used", registry.getUsed());
+            addAttribute(attribs, "hits", registry.getHits());
+            addAttribute(attribs, "misses", registry.getMisses());
+            addAttribute(attribs, "evictions", registry.getEvictions());
+            addAttribute(attribs, "load-time", registry.getTotalLoadTime());
+            final int nodeNr = builder.startElement("", "classifier-cache", "classifier-cache", attribs);
+            for (LoadedClassifier loaded : registry.getLoaded()) {
+                attribs = new AttributesImpl();
+                attribs.addAttribute("", "path", "path", "CDATA", loaded.getPath());
+                addAttribute(attribs, "last-modified", loaded.getLastModified());
+                addAttribute(attribs, "size", loaded.getEstimatedSize());
+                addAttribute(attribs, "hits", loaded.getHits());
+                addAttribute(attribs, "load-time", loaded.getLoadTime());
+                builder.startElement("", "classifier", "classifier", attribs);
+                builder.endElement();
+            }
+            builder.endElement();
+            return builder.getDocument().getNode(nodeNr);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    private static void addAttribute(AttributesImpl attribs, String name, long value) {
+        attribs.addAttribute("", name, name, "CDATA", Long.toString(value));
+    }
+}
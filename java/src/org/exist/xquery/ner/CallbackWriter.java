@@ -0,0 +1,41 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.FunctionReference;
+import org.xml.sax.SAXException;
+
+/**
+ * An {@link EntityWriter} which can replace entities with the result of a callback function.
+ * Only the in-memory markup supports callbacks: the streaming {@link NERContentFilter} does not.
+ */
+public interface CallbackWriter extends EntityWriter {
+
+    /**
+     * Call the callback function for an entity and write the returned items.
+     */
+    void callback(FunctionReference callback, String tag, String content) throws XPathException, SAXException;
+
+    /**
+     * Total time in nanoseconds spent in callback functions so far. Recorded as
+     * {@link Metrics#CALLBACK} and subtracted from {@link Metrics#MARKUP}.
+     */
+    long getCallbackTime();
+}
@@ -19,29 +19,144 @@
 package org.exist.xquery.ner;
 
 import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.exist.xquery.XPathException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
 
 /**
  * Load the word segmenter for Chinese. This is required to achieve acceptable results.
+ *
+ * The segmenter's document reader keeps state while processing a text, so one segmenter
+ * model can only process one text at a time. To segment texts concurrently, each data
+ * directory gets a pool of segmenter models. The pool starts with one model and grows up
+ * to the configured pool size while all models are busy. Since each model occupies a lot of
+ * memory, the default pool size is 1.
  */
 public class ChineseSegmenter {
 
-    private static ChineseSegmenter instance = null;
+    private final static Logger LOG = LogManager.getLogger(ChineseSegmenter.class);
+
+    private final static String WARMUP_TEXT = "\u521d\u59cb\u5316\u5206\u8bcd\u5668\u3002";
+
+    private final static ConcurrentHashMap<File, Future<ChineseSegmenter>> segmenters = new ConcurrentHashMap<>();
+
+    public final static int DEFAULT_POOL_SIZE = 1;
 
+    private static volatile int poolSize = DEFAULT_POOL_SIZE;
+
+    /**
+     * Return the segmenter for the given data directory, loading it if necessary. Threads requesting
+     * a segmenter which is being loaded wait for the load to complete.
+     */
     public static ChineseSegmenter getInstance(File dataDir) throws XPathException {
-        if (instance == null) {
-            instance = new ChineseSegmenter(dataDir);
+        final File key = getKey(dataDir);
+        Future<ChineseSegmenter> future = segmenters.get(key);
+        if (future == null) {
+            final FutureTask<ChineseSegmenter> task = new FutureTask<>(() -> new ChineseSegmenter(key));
+            future = segmenters.putIfAbsent(key, task);
+            if (future == null) {
+                future = task;
+                task.run();
+            }
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting for the Chinese segmenter to be loaded");
+        } catch (ExecutionException e) {
+            // allow the next request to try again
+            segmenters.remove(key, future);
+            if (e.getCause() instanceof XPathException) {
+                throw (XPathException) e.getCause();
+            }
+            throw new XPathException("Error while loading Chinese segmenter: " + e.getCause().getMessage());
+        }
+    }
+
+    private static File getKey(File dataDir) {
+        try {
+            return dataDir.getCanonicalFile();
+        } catch (IOException e) {
+            return dataDir.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Set the maximum number of segmenter models loaded per data directory.
+     */
+    public static void setPoolSize(int size) {
+        poolSize = Math.max(1, size);
+    }
+
+    public static int getPoolSize() {
+        return poolSize;
+    }
+
+    private final File dataDir;
+    private final LinkedBlockingDeque<CRFClassifier<CoreLabel>> idle = new LinkedBlockingDeque<>();
+    private int created = 0;
+
+    private ChineseSegmenter(File dataDir) throws XPathException {
+        this.dataDir = dataDir;
+        idle.add(load());
+        created = 1;
+    }
+
+    public String segment(String input) throws XPathException {
+        final long start = System.nanoTime();
+        final CRFClassifier<CoreLabel> classifier = acquire();
+        try {
+            return classifier.classifyToString(input);
+        } finally {
+            idle.addFirst(classifier);
+            Metrics.getInstance().time(Metrics.SEGMENTATION, start);
         }
-        return instance;
     }
 
-    private CRFClassifier classifier;
+    private CRFClassifier<CoreLabel> acquire() throws XPathException {
+        CRFClassifier<CoreLabel> classifier = idle.pollFirst();
+        if (classifier != null) {
+            return classifier;
+        }
+        boolean grow;
+        synchronized (this) {
+            grow = created < poolSize;
+            if (grow) {
+                created++;
+            }
+        }
+        if (grow) {
+            try {
+                return load();
+            } catch (XPathException e) {
+                synchronized (this) {
+                    created--;
+                }
+                throw e;
+            }
+        }
+        try {
+            return idle.takeFirst();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting for the Chinese segmenter");
+        }
+    }
 
-    public ChineseSegmenter(File dataDir) throws XPathException {
+    private CRFClassifier<CoreLabel> load() throws XPathException {
+        final long start = System.currentTimeMillis();
         // "ctb.gz"
         Properties props = new Properties();
         props.setProperty("NormalizationTable", new File(dataDir, "norm.simp.utf8").getAbsolutePath());
@@ -50,9 +165,9 @@ public class ChineseSegmenter {
         props.setProperty("sighanPostProcessing", "true");
         props.setProperty("serDictionary", new File(dataDir, "dict-chris6.ser.gz").getAbsolutePath());
 
-        classifier = new CRFClassifier(props);
-        try {
-            classifier.loadClassifier(new File(dataDir, "ctb.gz"), props);
+        final CRFClassifier<CoreLabel> classifier = new CRFClassifier<>(props);
+        try (final ObjectInputStream is = ModelStore.openCompressed(new File(dataDir, "ctb.gz"))) {
+            classifier.loadClassifier(is, props);
         } catch (IOException e) {
             throw new XPathException(e.getMessage());
         } catch (ClassNotFoundException e) {
@@ -60,9 +175,9 @@ public class ChineseSegmenter {
         } catch (Exception e) {
             throw new XPathException(e.getMessage());
         }
-    }
-
-    public String segment(String input) {
-        return classifier.classifyToString(input);
+        classifier.classifyToString(WARMUP_TEXT);
+        LOG.info("Loaded Chinese segmenter from " + dataDir.getAbsolutePath() + " in " +
+                (System.currentTimeMillis() - start) + "ms");
+        return classifier;
     }
 }
@@ -0,0 +1,314 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import edu.stanford.nlp.ie.AbstractSequenceClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps several classifiers in memory at the same time. Models are identified by the
+ * path of the binary resource they were loaded from. If the resource was modified since
+ * the model was loaded, it is loaded again.
+ *
+ * The registry tries to stay below a configurable memory budget: if adding a model
+ * exceeds the budget, the least recently used models are evicted. The model
+ * which was just requested is never evicted, even if it is larger than the budget.
+ *
+ * The registry is safe for concurrent use: lookups of a loaded model do not lock. If several
+ * threads request a model which is not yet loaded, only the first one loads it while the others
+ * wait for the result. A freshly loaded classifier is run once on a short text before it is
+ * published: this initializes the lazily created tokenizer, after which the Stanford classifier
+ * only reads shared state and can classify on many threads at once.
+ */
+public class ClassifierRegistry {
+
+    private final static Logger LOG = LogManager.getLogger(ClassifierRegistry.class);
+
+    private final static ClassifierRegistry instance = new ClassifierRegistry();
+
+    public static ClassifierRegistry getInstance() {
+        return instance;
+    }
+
+    private final static String WARMUP_TEXT = "Initialize the classifier.";
+
+    private final ConcurrentHashMap<String, Future<LoadedClassifier>> classifiers =
+            new ConcurrentHashMap<String, Future<LoadedClassifier>>();
+
+    /** guards eviction and the memory accounting */
+    private final Object evictionLock = new Object();
+
+    /** default memory budget: half of the maximum heap */
+    public final static long DEFAULT_BUDGET = Runtime.getRuntime().maxMemory() / 2;
+
+    private volatile long budget = DEFAULT_BUDGET;
+    private long used = 0;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong totalLoadTime = new AtomicLong();
+
+    private ClassifierRegistry() {
+    }
+
+    /**
+     * Set the maximum amount of memory (in bytes) the loaded models may occupy.
+     */
+    public void setBudget(long budget) {
+        if (budget != this.budget) {
+            this.budget = budget;
+            evict(null);
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Return the classifier stored in the binary resource at path, loading it if it is not
+     * yet in memory or if the resource was modified since it was loaded.
+     */
+    public LoadedClassifier get(DBBroker broker, String path) throws XPathException {
+        final DocumentImpl doc;
+        try {
+            doc = broker.getXMLResource(XmldbURI.createInternal(path));
+        } catch (PermissionDeniedException e) {
+            throw new XPathException("Permission denied to read classifier resource " + path);
+        }
+        if (doc == null) {
+            throw new XPathException("Classifier not found: " + path);
+        }
+        if (doc.getResourceType() != DocumentImpl.BINARY_FILE) {
+            throw new XPathException("Classifier path does not point to a binary resource: " + path);
+        }
+        final long lastModified = doc.getMetadata().getLastModified();
+
+        while (true) {
+            final Future<LoadedClassifier> current = classifiers.get(path);
+            if (current != null) {
+                final LoadedClassifier loaded = await(path, current);
+                if (loaded != null && loaded.getLastModified() == lastModified) {
+                    hits.incrementAndGet();
+                    loaded.hit(clock.incrementAndGet());
+                    return loaded;
+                }
+            }
+            // not loaded yet, failed to load or outdated: try to become the thread which loads it
+            final FutureTask<LoadedClassifier> task = new FutureTask<LoadedClassifier>(
+                    () -> load(broker, doc, path, lastModified));
+            final boolean installed = current == null ?
+                    classifiers.putIfAbsent(path, task) == null : classifiers.replace(path, current, task);
+            if (!installed) {
+                // another thread was faster: wait for its result
+                continue;
+            }
+            misses.incrementAndGet();
+            if (current != null) {
+                release(current);
+            }
+            task.run();
+            final LoadedClassifier loaded = await(path, task);
+            if (loaded == null) {
+                classifiers.remove(path, task);
+                rethrow(task);
+            }
+            evict(path);
+            return loaded;
+        }
+    }
+
+    /**
+     * Drop the model loaded from path, if any.
+     */
+    public void remove(String path) {
+        final Future<LoadedClassifier> removed = classifiers.remove(path);
+        if (removed != null) {
+            release(removed);
+        }
+    }
+
+    public List<LoadedClassifier> getLoaded() {
+        final List<LoadedClassifier> loaded = new ArrayList<LoadedClassifier>(classifiers.size());
+        for (Future<LoadedClassifier> future : classifiers.values()) {
+            final LoadedClassifier classifier = getIfDone(future);
+            if (classifier != null) {
+                loaded.add(classifier);
+            }
+        }
+        return loaded;
+    }
+
+    public long getUsed() {
+        synchronized (evictionLock) {
+            return used;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Total time in milliseconds spent loading models.
+     */
+    public long getTotalLoadTime() {
+        return totalLoadTime.get();
+    }
+
+    private LoadedClassifier load(DBBroker broker, DocumentImpl doc, String path, long lastModified)
+            throws XPathException {
+        final File classifierFile;
+        try {
+            classifierFile = broker.getBinaryFile((BinaryDocument) doc);
+        } catch (IOException e) {
+            throw new XPathException("Error while reading classifier resource: " + e.getMessage());
+        }
+        ResultCache.getInstance().configure(broker.getBrokerPool());
+        ModelStore.getInstance().configure(broker.getBrokerPool());
+        final long start = System.currentTimeMillis();
+        final AbstractSequenceClassifier<CoreLabel> classifier;
+        try {
+            classifier = ModelStore.getInstance().load(path, lastModified, classifierFile);
+        } catch (IOException e) {
+            throw new XPathException("Error while reading classifier resource: " + e.getMessage());
+        } catch (ClassNotFoundException e) {
+            throw new XPathException("Error while reading classifier resource: " + e.getMessage());
+        }
+        classifier.classify(WARMUP_TEXT);
+        final long loadTime = System.currentTimeMillis() - start;
+        totalLoadTime.addAndGet(loadTime);
+        LOG.info("Loaded classifier " + path + " in " + loadTime + "ms");
+        final LoadedClassifier loaded = new LoadedClassifier(path, lastModified, classifierFile, classifier, loadTime);
+        loaded.touch(clock.incrementAndGet());
+        ResultCache.getInstance().removeOutdated(loaded);
+        synchronized (evictionLock) {
+            used += loaded.getEstimatedSize();
+        }
+        return loaded;
+    }
+
+    private void evict(String keep) {
+        synchronized (evictionLock) {
+            if (used <= budget) {
+                return;
+            }
+            final List<Map.Entry<String, LoadedClassifier>> candidates =
+                    new ArrayList<Map.Entry<String, LoadedClassifier>>();
+            for (Map.Entry<String, Future<LoadedClassifier>> entry : classifiers.entrySet()) {
+                final LoadedClassifier loaded = getIfDone(entry.getValue());
+                if (loaded != null && !entry.getKey().equals(keep)) {
+                    candidates.add(new AbstractMap.SimpleEntry<String, LoadedClassifier>(entry.getKey(), loaded));
+                }
+            }
+            Collections.sort(candidates, Comparator.comparingLong(e -> e.getValue().getLastAccess()));
+            for (Map.Entry<String, LoadedClassifier> candidate : candidates) {
+                if (used <= budget) {
+                    break;
+                }
+                final Future<LoadedClassifier> future = classifiers.get(candidate.getKey());
+                if (future != null && getIfDone(future) == candidate.getValue() &&
+                        classifiers.remove(candidate.getKey(), future)) {
+                    LOG.info("Evicting classifier " + candidate.getKey() + " to stay within memory budget");
+                    used -= candidate.getValue().getEstimatedSize();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void release(Future<LoadedClassifier> future) {
+        final LoadedClassifier loaded = getIfDone(future);
+        if (loaded != null) {
+            synchronized (evictionLock) {
+                used -= loaded.getEstimatedSize();
+            }
+        }
+    }
+
+    /**
+     * Wait for the model to be loaded. Returns null if loading failed.
+     */
+    private static LoadedClassifier await(String path, Future<LoadedClassifier> future) throws XPathException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting for classifier " + path + " to be loaded");
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static LoadedClassifier getIfDone(Future<LoadedClassifier> future) {
+        if (!future.isDone()) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static void rethrow(Future<LoadedClassifier> failed) throws XPathException {
+        try {
+            failed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof XPathException) {
+                throw (XPathException) e.getCause();
+            }
+            throw new XPathException("Error while loading classifier: " + e.getCause().getMessage());
+        }
+    }
+}
@@ -18,27 +18,25 @@
  */
 package org.exist.xquery.ner;
 
-import edu.stanford.nlp.ie.AbstractSequenceClassifier;
-import edu.stanford.nlp.ie.crf.CRFClassifier;
-import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
-import edu.stanford.nlp.sequences.SeqClassifierFlags;
-import org.exist.dom.persistent.BinaryDocument;
-import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.QName;
 import org.exist.dom.memtree.DocumentBuilderReceiver;
 import org.exist.dom.memtree.MemTreeBuilder;
-import org.exist.security.PermissionDeniedException;
-import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
 import org.exist.xquery.value.*;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
-import java.io.File;
-import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class Classify extends BasicFunction {
 
@@ -135,12 +133,67 @@ public class Classify extends BasicFunction {
                     },
                     new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE,
                             "An in-memory node")
+            ),
+            new FunctionSignature(
+                    new QName("classify-node", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+                    "Mark up named entities in a node and all its sub-nodes. Returns a new in-memory document. " +
+                    "Recognized entities are enclosed in inline elements.",
+                    new SequenceType[] {
+                            new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                                    "The path to the serialized classifier to load. Should point to a binary resource " +
+                                            "stored within the database"),
+                            new FunctionParameterSequenceType("node", Type.NODE, Cardinality.EXACTLY_ONE,
+                                    "The node to process."),
+                            new FunctionParameterSequenceType("callback", Type.FUNCTION_REFERENCE, Cardinality.ZERO_OR_ONE,
+                                    "A function item to be called for every entity found. Should take two parameters: " +
+                                    "1) the name of the entity as string, 2) the content as string. The return value " +
+                                    "of the function is inserted into the output. Pass an empty sequence to wrap " +
+                                    "entities into inline elements instead."),
+                            new FunctionParameterSequenceType("options", Type.MAP, Cardinality.EXACTLY_ONE,
+                                    "Options map. Supported keys: 'parallelism': the number of text nodes to " +
+                                    "classify in parallel (defaults to the number of processors, use 1 to disable); " +
+                                    "'blocks': a sequence of element names, e.g. ('p', 'l'). The text of each of " +
+                                    "these elements is classified as a whole, so entities spanning inline markup " +
+                                    "are recognized; 'batch-callback': if true(), the callback is called once per " +
+                                    "text node or block with a sequence of maps (keys 'type', 'text' and 'offset', " +
+                                    "the position of the entity in the text of the text node or block), one per " +
+                                    "entity, and must return exactly one item per entity, which replaces it.")
+                    },
+                    new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE,
+                            "An in-memory node")
+            ),
+            new FunctionSignature(
+                    new QName("classify-node-cn", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+                    "Mark up named entities in a node and all its sub-nodes. Returns a new in-memory document. " +
+                    "Recognized entities are enclosed in inline elements. This is a special variant for Chinese " +
+                    "text.",
+                    new SequenceType[] {
+                            new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                                    "The path to the serialized classifier to load. Should point to a binary resource " +
+                                            "stored within the database"),
+                            new FunctionParameterSequenceType("node", Type.NODE, Cardinality.EXACTLY_ONE,
+                                    "The node to process."),
+                            new FunctionParameterSequenceType("callback", Type.FUNCTION_REFERENCE, Cardinality.ZERO_OR_ONE,
+                                    "A function item to be called for every entity found. Should take two parameters: " +
+                                    "1) the name of the entity as string, 2) the content as string. The return value " +
+                                    "of the function is inserted into the output. Pass an empty sequence to wrap " +
+                                    "entities into inline elements instead."),
+                            new FunctionParameterSequenceType("options", Type.MAP, Cardinality.EXACTLY_ONE,
+                                    "Options map. Supported keys: 'parallelism': the number of text nodes to " +
+                                    "classify in parallel (defaults to the number of processors, use 1 to disable); " +
+                                    "'blocks': a sequence of element names, e.g. ('p', 'l'). The text of each of " +
+                                    "these elements is classified as a whole, so entities spanning inline markup " +
+                                    "are recognized; 'batch-callback': if true(), the callback is called once per " +
+                                    "text node or block with a sequence of maps (keys 'type', 'text' and 'offset', " +
+                                    "the position of the entity in the segmented text, in which the segmenter has " +
+                                    "inserted spaces between words, so it differs from the position in the original " +
+                                    "text), one per entity, and must return exactly one item per entity, which replaces it.")
+                    },
+                    new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE,
+                            "An in-memory node")
             )
     };
 
-    private static String classifierSource = null;
-    private static File dataDir = null;
-    private static AbstractSequenceClassifier<CoreLabel> cachedClassifier = null;
     private AnalyzeContextInfo cachedContextInfo;
 
     public Classify(XQueryContext context, FunctionSignature signature) {
@@ -155,62 +208,82 @@ public class Classify extends BasicFunction {
 
     @Override
     public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
-        String classifierPath = args[0].getStringValue();
-
-        context.pushDocumentContext();
+        final long startTime = System.nanoTime();
+        final Limits.Call call = Limits.enter(context, this);
         try {
-            if (classifierSource == null || !classifierPath.equals(classifierSource)) {
-                classifierSource = classifierPath;
-                DocumentImpl doc = (DocumentImpl) context.getBroker().getXMLResource(XmldbURI.createInternal(classifierPath));
-                if (doc.getResourceType() != DocumentImpl.BINARY_FILE) {
-                    throw new XPathException(this, "Classifier path does not point to a binary resource");
-                }
-                BinaryDocument binaryDocument = (BinaryDocument)doc;
-                File classifierFile = context.getBroker().getBinaryFile(binaryDocument);
-                dataDir = classifierFile.getParentFile();
-                cachedClassifier = CRFClassifier.getClassifier(classifierFile);
-            }
+            String classifierPath = args[0].getStringValue();
 
-            ChineseSegmenter segmenter = null;
-            if (isCalledAs("classify-node-cn")) {
-                segmenter = ChineseSegmenter.getInstance(dataDir);
-            }
-            if (isCalledAs("classify-string")) {
-                String text = args[1].getStringValue();
-                if (segmenter != null) {
-                    text = segmenter.segment(text);
+            context.pushDocumentContext();
+            try {
+                final LoadedClassifier classifier = ClassifierRegistry.getInstance().get(context.getBroker(), classifierPath);
+
+                ChineseSegmenter segmenter = null;
+                if (isCalledAs("classify-node-cn") || isCalledAs("classify-string-cn")) {
+                    segmenter = ChineseSegmenter.getInstance(classifier.getDataDir());
                 }
-                return classifyString(text);
-            } else {
-                NodeValue nv = (NodeValue) args[1].itemAt(0);
-                FunctionReference callback = null;
-                if (getArgumentCount() == 3) {
-                    callback = (FunctionReference)args[2].itemAt(0);
-                    callback.analyze(cachedContextInfo);
+                if (isCalledAs("classify-string") || isCalledAs("classify-string-cn")) {
+                    String text = args[1].getStringValue();
+                    if (segmenter != null) {
+                        text = segmenter.segment(text);
+                    }
+                    return classifyString(classifier, text);
+                } else {
+                    NodeValue nv = (NodeValue) args[1].itemAt(0);
+                    FunctionReference callback = null;
+                    if (getArgumentCount() > 2 && !args[2].isEmpty()) {
+                        callback = (FunctionReference)args[2].itemAt(0);
+                        callback.analyze(cachedContextInfo);
+                    }
+                    int parallelism = 1;
+                    Set<String> blocks = null;
+                    BatchCallback batch = null;
+                    if (getArgumentCount() == 4) {
+                        final AbstractMapType options = (AbstractMapType) args[3].itemAt(0);
+                        parallelism = Math.max(1, Options.getInt(options, "parallelism", WorkerPool.getSize()));
+                        blocks = Options.getStrings(options, "blocks");
+                        final Sequence batchOption = Options.get(options, "batch-callback");
+                        if (callback != null && batchOption != null && batchOption.effectiveBooleanValue()) {
+                            batch = new BatchCallback(context, callback);
+                        }
+                    }
+                    return classifyNode(classifier, nv, segmenter, callback, batch, parallelism, blocks);
                 }
-                return classifyNode(nv, segmenter, callback);
-            }
-        } catch (PermissionDeniedException e) {
-            throw new XPathException(this, "Permission denied to read classifier resource", e);
-        } catch (IOException e) {
-            throw new XPathException(this, "Error while reading classifier resource: " + e.getMessage(), e);
-        } catch (ClassNotFoundException e) {
-            throw new XPathException(this, "Error while reading classifier resource: " + e.getMessage(), e);
+            } finally {
+                context.popDocumentContext();
+            }
+        } catch (Limits.LimitExceededException e) {
+            throw e.getError();
         } finally {
-            context.popDocumentContext();
+            call.exit();
+            Metrics.getInstance().call(getSignature().getName().getLocalPart(), startTime);
         }
     }
 
-    private Sequence classifyNode(NodeValue node, ChineseSegmenter segmenter, FunctionReference callback) throws XPathException {
+    private Sequence classifyNode(LoadedClassifier classifier, NodeValue node, ChineseSegmenter segmenter,
+                                  FunctionReference callback, BatchCallback batch, int parallelism,
+                                  Set<String> blocks) throws XPathException {
         final Properties serializeOptions = new Properties();
 
         try {
             final MemTreeBuilder builder = context.getDocumentBuilder();
-            final DocumentBuilderReceiver receiver = new NERDocumentReceiver(builder, segmenter, callback);
 
             final int nodeNr = builder.getDocument().getLastNode();
 
-            node.toSAX(context.getBroker(), receiver, serializeOptions);
+            if (parallelism > 1) {
+                final ParallelNERReceiver receiver =
+                        new ParallelNERReceiver(builder, classifier, segmenter, callback, batch, blocks, parallelism);
+                try {
+                    node.toSAX(context.getBroker(), receiver, serializeOptions);
+                    receiver.flush();
+                } finally {
+                    receiver.cancel();
+                }
+            } else {
+                final NERDocumentReceiver receiver =
+                        new NERDocumentReceiver(builder, classifier, segmenter, callback, batch, blocks);
+                node.toSAX(context.getBroker(), receiver, serializeOptions);
+                receiver.flush();
+            }
 
             return builder.getDocument().getNode(nodeNr + 1);
         } catch (SAXException e) {
@@ -218,142 +291,133 @@ public class Classify extends BasicFunction {
         }
     }
 
-    private Sequence classifyString(String text) throws XPathException {
+    private Sequence classifyString(LoadedClassifier classifier, String text) throws XPathException {
         MemTreeBuilder builder = context.getDocumentBuilder();
         DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder);
-        ValueSequence result = new ValueSequence();
+        final ValueSequence result = new ValueSequence();
         try {
-            classifyText(text, builder, receiver, result, null);
+            final EntityMarkup markup = new EntityMarkup(context.getBroker(), builder, receiver);
+            if (SentenceWindows.isLong(text)) {
+                SentenceWindows.classify(classifier, text, sentences -> {
+                    context.getWatchDog().proceed(this);
+                    markup.append(sentences, result, null);
+                });
+                markup.flush(result);
+            } else {
+                markup.write(classifier.classify(text), result, null);
+            }
         } catch (SAXException e) {
             throw new XPathException(this, e);
         }
         return result;
     }
 
-    private void classifyText(String text, MemTreeBuilder builder, DocumentBuilderReceiver receiver, ValueSequence result, FunctionReference callback) throws XPathException, SAXException {
-        StringBuilder buf = new StringBuilder();
-        String background = SeqClassifierFlags.DEFAULT_BACKGROUND_SYMBOL;
-        String prevTag = background;
-        int nodeNr = 0;
-        List<List<CoreLabel>> out = cachedClassifier.classify(text);
-        for (List<CoreLabel> sentence : out) {
-            for (Iterator<CoreLabel> wordIter = sentence.iterator(); wordIter.hasNext(); ) {
-                CoreLabel word = wordIter.next();
-                final String current = word.get(CoreAnnotations.OriginalTextAnnotation.class);
-                final String tag = word.get(CoreAnnotations.AnswerAnnotation.class);
-                final String before = word.get(CoreAnnotations.BeforeAnnotation.class);
-                final String after = word.get(CoreAnnotations.AfterAnnotation.class);
-                if (!tag.equals(prevTag)) {
-                    if (!prevTag.equals(background) && !tag.equals(background)) {
-                        writeText(builder, buf, null);
-                        builder.endElement();
-                        if (result != null) {
-                            result.add(builder.getDocument().getNode(nodeNr));
-                        }
-                        if (before != null)
-                            buf.append(before);
-                        writeText(builder, buf, result);
-                        if (callback == null) {
-                            final String name = tag.toLowerCase();
-                            nodeNr = builder.startElement("", name, name, null);
-                        }
-                    } else if (!prevTag.equals(background)) {
-                        if (callback == null) {
-                            writeText(builder, buf, null);
-                            builder.endElement();
-                            if (result != null) {
-                                result.add(builder.getDocument().getNode(nodeNr));
-                            }
-                        } else {
-                            execCallback(callback, buf, prevTag, receiver);
-                        }
-                        if (before != null)
-                            buf.append(before);
-                    } else if (!tag.equals(background)) {
-                        if (before != null)
-                            buf.append(before);
-                        writeText(builder, buf, result);
-                        if (callback == null) {
-                            final String name = tag.toLowerCase();
-                            nodeNr = builder.startElement("", name, name, null);
-                        }
-                    }
-                } else {
-                    if (before != null)
-                        buf.append(before);
-                }
-                buf.append(current);
-
-                if (!tag.equals(background) && !wordIter.hasNext()) {
-                    if (callback == null) {
-                        writeText(builder, buf, result);
-                        builder.endElement();
-                    } else {
-                        execCallback(callback, buf, tag, receiver);
-                    }
-                    prevTag = background;
-                } else {
-                    prevTag = tag;
-                }
-                if (after != null)
-                    buf.append(after);
-            }
+    private static String segment(ChineseSegmenter segmenter, String text) throws SAXException {
+        try {
+            return segmenter.segment(text);
+        } catch (XPathException e) {
+            throw new SAXException(e.getMessage(), e);
         }
-        writeText(builder, buf, result);
     }
 
-    private void execCallback(FunctionReference callback, StringBuilder buf, String prevTag, DocumentBuilderReceiver receiver) throws XPathException, SAXException {
-        final StringValue tagName = new StringValue(prevTag);
-        final StringValue content = new StringValue(buf.toString());
-        Sequence result = callback.evalFunction(null, null, new Sequence[] { tagName, content });
-        for (SequenceIterator iterator = result.iterate(); iterator.hasNext(); ) {
-            Item next = iterator.nextItem();
-            if (Type.subTypeOf(next.getType(), Type.NODE)) {
-                next.copyTo(context.getBroker(), receiver);
-            } else {
-                receiver.characters(next.getStringValue());
-            }
+    /**
+     * Write the classifier output for a text node. With a batch callback, the callback is
+     * evaluated once for all entities before the markup is written.
+     */
+    private static void write(EntityMarkup markup, BatchCallback batch, List<List<CoreLabel>> out,
+                              FunctionReference callback) throws XPathException, SAXException {
+        if (batch == null) {
+            markup.write(out, null, callback);
+            return;
         }
-        buf.setLength(0);
+        markup.setReplacements(batch.evaluate(out));
+        markup.write(out, null, callback);
+        markup.setReplacements(null);
     }
 
-    private void writeText(MemTreeBuilder builder, StringBuilder buf, ValueSequence result) {
-        if (buf.length() > 0) {
-            int node = builder.characters(buf.toString());
-            if (result != null) {
-                result.add(builder.getDocument().getNode(node));
+    /**
+     * Write the classifier output for a text block, see {@link #write}.
+     */
+    private static void writeBlock(EntityMarkup markup, BatchCallback batch, TextBlock block,
+                                   List<List<CoreLabel>> out, FunctionReference callback)
+            throws XPathException, SAXException {
+        if (batch != null) {
+            markup.setReplacements(batch.evaluate(out));
+        }
+        block.write(EntitySpan.find(out), markup, callback);
+        if (batch != null) {
+            markup.setReplacements(null);
+        }
+    }
+
+    private static boolean isBlank(char[] ch, int start, int len) {
+        for (int i = start; i < start + len; i++) {
+            if (ch[i] > ' ') {
+                return false;
             }
-            buf.setLength(0);
         }
+        return true;
     }
 
     private class NERDocumentReceiver extends DocumentBuilderReceiver {
 
-        private MemTreeBuilder builder;
+        private LoadedClassifier classifier;
         private FunctionReference callback;
+        private BatchCallback batch;
         private ChineseSegmenter segmenter;
+        private EntityMarkup markup;
+        private Set<String> blocks;
+        private TextBlock block = null;
+        private int blockLevel = 0;
         private boolean inCallback = false;
 
-        public NERDocumentReceiver(MemTreeBuilder builder, ChineseSegmenter segmenter, FunctionReference callback) {
+        public NERDocumentReceiver(MemTreeBuilder builder, LoadedClassifier classifier,
+                                   ChineseSegmenter segmenter, FunctionReference callback, BatchCallback batch,
+                                   Set<String> blocks) {
             super(builder, true);
-            this.builder = builder;
+            this.classifier = classifier;
             this.segmenter = segmenter;
             this.callback = callback;
+            this.batch = batch;
+            this.blocks = blocks;
+            this.markup = new EntityMarkup(context.getBroker(), builder, this);
         }
 
-        @Override
-        public void characters(CharSequence seq) throws SAXException {
-            if (inCallback) {
-                super.characters(seq);
+        /**
+         * Classify and write any pending block content.
+         */
+        public void flush() throws SAXException {
+            if (block == null) {
                 return;
             }
-            String s = seq.toString();
+            final String text = block.getText();
+            try {
+                inCallback = true;
+                if (text.trim().isEmpty()) {
+                    block.replay(markup);
+                } else {
+                    final List<List<CoreLabel>> out = classifier.classify(text);
+                    writeBlock(markup, batch, block, out, callback);
+                }
+            } catch (XPathException e) {
+                throw new SAXException(e.getMessage(), e);
+            } finally {
+                inCallback = false;
+            }
+            block = null;
+        }
+
+        private void text(String s) throws SAXException {
             if (segmenter != null) {
-                s = segmenter.segment(s);
+                s = segment(segmenter, s);
+            }
+            if (block != null) {
+                block.addText(s);
+                return;
             }
             try {
                 inCallback = true;
-                classifyText(s, builder, this, null, callback);
+                write(markup, batch, classifier.classify(s), callback);
             } catch (XPathException e) {
                 throw new SAXException(e.getMessage(), e);
             } finally {
@@ -361,23 +425,354 @@ public class Classify extends BasicFunction {
             }
         }
 
+        @Override
+        public void characters(CharSequence seq) throws SAXException {
+            if (inCallback) {
+                super.characters(seq);
+                return;
+            }
+            text(seq.toString());
+        }
+
         @Override
         public void characters(char[] ch, int start, int len) throws SAXException {
             if (inCallback) {
                 super.characters(ch, start, len);
                 return;
             }
-            String s = new String(ch, start, len);
-            if (segmenter != null) {
-                s = segmenter.segment(s);
+            if (block != null && segmenter == null) {
+                block.addText(ch, start, len);
+            } else if (block != null || !isBlank(ch, start, len)) {
+                // the classifier returns nothing for whitespace-only text
+                text(new String(ch, start, len));
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            if (inCallback) {
+                super.startElement(uri, localName, qName, attributes);
+            } else if (blocks != null && blocks.contains(localName)) {
+                flush();
+                super.startElement(uri, localName, qName, attributes);
+                blockLevel++;
+                block = new TextBlock();
+            } else if (block != null) {
+                final Attributes copy = new AttributesImpl(attributes);
+                block.addStartElement(() -> super.startElement(uri, localName, qName, copy));
+            } else {
+                super.startElement(uri, localName, qName, attributes);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (inCallback) {
+                super.endElement(uri, localName, qName);
+            } else if (blockLevel > 0 && blocks.contains(localName)) {
+                flush();
+                super.endElement(uri, localName, qName);
+                blockLevel--;
+                block = blockLevel > 0 ? new TextBlock() : null;
+            } else if (block != null) {
+                block.addEndElement(() -> super.endElement(uri, localName, qName));
+            } else {
+                super.endElement(uri, localName, qName);
+            }
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String namespaceURI) throws SAXException {
+            if (block != null && !inCallback) {
+                block.addEvent(() -> super.startPrefixMapping(prefix, namespaceURI));
+            } else {
+                super.startPrefixMapping(prefix, namespaceURI);
+            }
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            if (block != null && !inCallback) {
+                block.addEvent(() -> super.endPrefixMapping(prefix));
+            } else {
+                super.endPrefixMapping(prefix);
+            }
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            if (block != null && !inCallback) {
+                block.addEvent(() -> super.processingInstruction(target, data));
+            } else {
+                super.processingInstruction(target, data);
+            }
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) throws SAXException {
+            if (block != null && !inCallback) {
+                final char[] copy = Arrays.copyOfRange(ch, start, start + length);
+                block.addEvent(() -> super.comment(copy, 0, copy.length));
+            } else {
+                super.comment(ch, start, length);
+            }
+        }
+    }
+
+    /**
+     * Classifies text nodes on the {@link WorkerPool} while the node is being serialized. All
+     * other events are queued until the classification results for the preceding text nodes
+     * are available, so the output is written in document order and is the same as
+     * the one produced by {@link NERDocumentReceiver}. At most parallelism text nodes (or
+     * blocks) are waiting for the classifier at any time.
+     */
+    private class ParallelNERReceiver extends DocumentBuilderReceiver {
+
+        private final LoadedClassifier classifier;
+        private final FunctionReference callback;
+        private final BatchCallback batch;
+        private final ChineseSegmenter segmenter;
+        private final EntityMarkup markup;
+        private final int parallelism;
+        private final Set<String> blocks;
+
+        private final Deque<SAXEvent> events = new ArrayDeque<>();
+        private final Deque<Future<List<List<CoreLabel>>>> pending = new ArrayDeque<>();
+        private TextBlock block = null;
+        private int blockLevel = 0;
+        private boolean replaying = false;
+
+        public ParallelNERReceiver(MemTreeBuilder builder, LoadedClassifier classifier,
+                                   ChineseSegmenter segmenter, FunctionReference callback, BatchCallback batch,
+                                   Set<String> blocks, int parallelism) {
+            super(builder, true);
+            this.classifier = classifier;
+            this.segmenter = segmenter;
+            this.callback = callback;
+            this.batch = batch;
+            this.blocks = blocks;
+            this.parallelism = parallelism;
+            this.markup = new EntityMarkup(context.getBroker(), builder, this);
+        }
+
+        /**
+         * Write all queued events, waiting for outstanding classification results.
+         */
+        public void flush() throws SAXException {
+            endBlock();
+            while (!events.isEmpty()) {
+                replayNext();
+            }
+        }
+
+        /**
+         * Cancel outstanding classification tasks, e.g. if an error occurred.
+         */
+        public void cancel() {
+            for (Future<?> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            events.clear();
+        }
+
+        private void replayNext() throws SAXException {
+            replaying = true;
+            try {
+                events.poll().replay();
+            } finally {
+                replaying = false;
+            }
+        }
+
+        private void text(String text) throws SAXException {
+            if (block != null) {
+                block.addText(segmenter == null ? text : segment(segmenter, text));
+                return;
+            }
+            if (text.trim().isEmpty()) {
+                // the classifier returns nothing for whitespace-only text
+                return;
+            }
+            final Future<List<List<CoreLabel>>> future = WorkerPool.getExecutor().submit(Limits.wrap(() -> {
+                final String s = segmenter == null ? text : segmenter.segment(text);
+                return classifier.classify(s);
+            }));
+            pending.add(future);
+            events.add(() -> {
+                try {
+                    write(markup, batch, await(), callback);
+                } catch (XPathException e) {
+                    throw new SAXException(e.getMessage(), e);
+                }
+            });
+            while (pending.size() > parallelism) {
+                replayNext();
+            }
+        }
+
+        private void endBlock() throws SAXException {
+            if (block == null) {
+                return;
             }
+            final TextBlock current = block;
+            block = null;
+            final String text = current.getText();
+            if (text.trim().isEmpty()) {
+                events.add(() -> current.replay(markup));
+                return;
+            }
+            pending.add(WorkerPool.getExecutor().submit(Limits.wrap(() -> classifier.classify(text))));
+            events.add(() -> {
+                try {
+                    writeBlock(markup, batch, current, await(), callback);
+                } catch (XPathException e) {
+                    throw new SAXException(e.getMessage(), e);
+                }
+            });
+            while (pending.size() > parallelism) {
+                replayNext();
+            }
+        }
+
+        private List<List<CoreLabel>> await() throws SAXException {
             try {
-                inCallback = true;
-                classifyText(s, builder, this, null, callback);
+                final List<List<CoreLabel>> out = pending.poll().get();
+                context.getWatchDog().proceed(Classify.this);
+                return out;
             } catch (XPathException e) {
                 throw new SAXException(e.getMessage(), e);
-            } finally {
-                inCallback = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SAXException("Interrupted while waiting for classification results");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Limits.LimitExceededException) {
+                    throw (Limits.LimitExceededException) e.getCause();
+                }
+                throw new SAXException("Error while classifying text: " + e.getCause().getMessage());
+            }
+        }
+
+        private void record(SAXEvent event) {
+            if (block != null) {
+                block.addEvent(event);
+            } else {
+                events.add(event);
+            }
+        }
+
+        @Override
+        public void characters(CharSequence seq) throws SAXException {
+            if (replaying) {
+                super.characters(seq);
+            } else {
+                text(seq.toString());
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int len) throws SAXException {
+            if (replaying) {
+                super.characters(ch, start, len);
+            } else if (block != null && segmenter == null) {
+                block.addText(ch, start, len);
+            } else if (block != null || !isBlank(ch, start, len)) {
+                text(new String(ch, start, len));
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            if (replaying) {
+                super.startElement(uri, localName, qName, attributes);
+                return;
+            }
+            final Attributes copy = new AttributesImpl(attributes);
+            final SAXEvent event = () -> super.startElement(uri, localName, qName, copy);
+            if (blocks != null && blocks.contains(localName)) {
+                endBlock();
+                events.add(event);
+                blockLevel++;
+                block = new TextBlock();
+            } else if (block != null) {
+                block.addStartElement(event);
+            } else {
+                events.add(event);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (replaying) {
+                super.endElement(uri, localName, qName);
+                return;
+            }
+            final SAXEvent event = () -> super.endElement(uri, localName, qName);
+            if (blockLevel > 0 && blocks.contains(localName)) {
+                endBlock();
+                events.add(event);
+                blockLevel--;
+                block = blockLevel > 0 ? new TextBlock() : null;
+            } else if (block != null) {
+                block.addEndElement(event);
+            } else {
+                events.add(event);
+            }
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String namespaceURI) throws SAXException {
+            if (replaying) {
+                super.startPrefixMapping(prefix, namespaceURI);
+            } else {
+                record(() -> super.startPrefixMapping(prefix, namespaceURI));
+            }
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            if (replaying) {
+                super.endPrefixMapping(prefix);
+            } else {
+                record(() -> super.endPrefixMapping(prefix));
+            }
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            if (replaying) {
+                super.processingInstruction(target, data);
+            } else {
+                record(() -> super.processingInstruction(target, data));
+            }
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) throws SAXException {
+            if (replaying) {
+                super.comment(ch, start, length);
+            } else {
+                final char[] copy = Arrays.copyOfRange(ch, start, start + length);
+                record(() -> super.comment(copy, 0, copy.length));
+            }
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            if (replaying) {
+                super.startDocument();
+            } else {
+                events.add(super::startDocument);
+            }
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            if (replaying) {
+                super.endDocument();
+            } else {
+                endBlock();
+                events.add(super::endDocument);
             }
         }
     }
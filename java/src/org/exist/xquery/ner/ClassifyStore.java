@@ -0,0 +1,115 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.dom.QName;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.*;
+
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Mark up named entities in a node and store the result directly into the database.
+ */
+public class ClassifyStore extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+        new FunctionSignature(
+            new QName("classify-store", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Mark up named entities in a node and all its sub-nodes and store the result as a new document. " +
+            "Unlike ner:classify-node, no in-memory copy of the node is created: the annotated node is streamed " +
+            "to storage. Returns the path of the stored document.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                    "The path to the serialized classifier to load. Should point to a binary resource " +
+                    "stored within the database"),
+                new FunctionParameterSequenceType("node", Type.NODE, Cardinality.EXACTLY_ONE,
+                    "The node to process."),
+                new FunctionParameterSequenceType("collection", Type.STRING, Cardinality.EXACTLY_ONE,
+                    "The collection to store the document into. Will be created if it does not exist."),
+                new FunctionParameterSequenceType("name", Type.STRING, Cardinality.EXACTLY_ONE,
+                    "The name of the document to create.")
+            },
+            new FunctionReturnSequenceType(Type.STRING, Cardinality.EXACTLY_ONE,
+                "The path of the stored document")
+        ),
+        new FunctionSignature(
+            new QName("classify-store", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Mark up named entities in a node and all its sub-nodes and store the result as a new document. " +
+            "Unlike ner:classify-node, no in-memory copy of the node is created: the annotated node is streamed " +
+            "to storage. Returns the path of the stored document.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                    "The path to the serialized classifier to load. Should point to a binary resource " +
+                    "stored within the database"),
+                new FunctionParameterSequenceType("node", Type.NODE, Cardinality.EXACTLY_ONE,
+                    "The node to process."),
+                new FunctionParameterSequenceType("collection", Type.STRING, Cardinality.EXACTLY_ONE,
+                    "The collection to store the document into. Will be created if it does not exist."),
+                new FunctionParameterSequenceType("name", Type.STRING, Cardinality.EXACTLY_ONE,
+                    "The name of the document to create."),
+                new FunctionParameterSequenceType("options", Type.MAP, Cardinality.EXACTLY_ONE,
+                    "Options map. Supported keys: 'blocks': a sequence of element names, e.g. ('p', 'l'). " +
+                    "The text of each of these elements is classified as a whole. Callbacks are not " +
+                    "supported: passing a 'callback' option raises an error.")
+            },
+            new FunctionReturnSequenceType(Type.STRING, Cardinality.EXACTLY_ONE,
+                "The path of the stored document")
+        )
+    };
+
+    public ClassifyStore(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final long startTime = System.nanoTime();
+        final Limits.Call call = Limits.enter(context, this);
+        try {
+            final String classifierPath = args[0].getStringValue();
+            final NodeValue node = (NodeValue) args[1].itemAt(0);
+            final XmldbURI collectionUri = XmldbURI.createInternal(args[2].getStringValue());
+            final XmldbURI docName = XmldbURI.createInternal(args[3].getStringValue());
+            Set<String> blocks = null;
+            if (getArgumentCount() == 5) {
+                final AbstractMapType options = (AbstractMapType) args[4].itemAt(0);
+                if (Options.get(options, "callback") != null) {
+                    throw new XPathException(this, "Callbacks are not supported by ner:classify-store, " +
+                            "use ner:classify-node instead");
+                }
+                blocks = Options.getStrings(options, "blocks");
+            }
+
+            final LoadedClassifier classifier =
+                    ClassifierRegistry.getInstance().get(context.getBroker(), classifierPath);
+            final XmldbURI stored = AnnotationStore.store(context.getBroker(), classifier, null, blocks,
+                    handler -> node.toSAX(context.getBroker(), handler, new Properties()), collectionUri, docName);
+            return new StringValue(stored.toString());
+        } catch (Limits.LimitExceededException e) {
+            throw e.getError();
+        } finally {
+            call.exit();
+            Metrics.getInstance().call(getSignature().getName().getLocalPart(), startTime);
+        }
+    }
+}
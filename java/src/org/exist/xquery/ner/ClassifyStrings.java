@@ -0,0 +1,189 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.*;
+import org.xml.sax.SAXException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Classify a sequence of strings in one call. The strings are split into chunks, which are
+ * classified in parallel by the {@link WorkerPool}. The markup is written by the calling thread
+ * in input order.
+ */
+public class ClassifyStrings extends BasicFunction {
+
+    public final static int DEFAULT_CHUNK_SIZE = 16;
+
+    public final static FunctionSignature signatures[] = {
+        new FunctionSignature(
+            new QName("classify-strings", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Classify each of the provided strings, using several threads. Returns one result element per " +
+            "input string, in input order. Each result element contains the text nodes and elements " +
+            "ner:classify-string would return for the string.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                    "The path to the serialized classifier to load. Should point to a binary resource " +
+                    "stored within the database"),
+                new FunctionParameterSequenceType("texts", Type.STRING, Cardinality.ZERO_OR_MORE,
+                    "The strings of text to analyze.")
+            },
+            new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.ZERO_OR_MORE,
+                "One result element per input string")
+        ),
+        new FunctionSignature(
+            new QName("classify-strings", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Classify each of the provided strings, using several threads. Returns one result element per " +
+            "input string, in input order. Each result element contains the text nodes and elements " +
+            "ner:classify-string would return for the string.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                    "The path to the serialized classifier to load. Should point to a binary resource " +
+                    "stored within the database"),
+                new FunctionParameterSequenceType("texts", Type.STRING, Cardinality.ZERO_OR_MORE,
+                    "The strings of text to analyze."),
+                new FunctionParameterSequenceType("options", Type.MAP, Cardinality.EXACTLY_ONE,
+                    "Options map. Supported keys: 'parallelism': the maximum number of threads to use " +
+                    "(defaults to the number of processors); 'chunk-size': the number of strings passed " +
+                    "to a thread at once (default: " + ClassifyStrings.DEFAULT_CHUNK_SIZE + ").")
+            },
+            new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.ZERO_OR_MORE,
+                "One result element per input string")
+        )
+    };
+
+    public ClassifyStrings(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final long startTime = System.nanoTime();
+        final Limits.Call call = Limits.enter(context, this);
+        try {
+            final String classifierPath = args[0].getStringValue();
+            final String[] texts = new String[args[1].getItemCount()];
+            int i = 0;
+            for (SequenceIterator iterator = args[1].iterate(); iterator.hasNext(); i++) {
+                texts[i] = iterator.nextItem().getStringValue();
+            }
+            final AbstractMapType options = getArgumentCount() == 3 ? (AbstractMapType) args[2].itemAt(0) : null;
+            final int parallelism = Math.max(1, Options.getInt(options, "parallelism", WorkerPool.getSize()));
+            final int chunkSize = Math.max(1, Options.getInt(options, "chunk-size", DEFAULT_CHUNK_SIZE));
+
+            if (texts.length == 0) {
+                return Sequence.EMPTY_SEQUENCE;
+            }
+            context.pushDocumentContext();
+            try {
+                final LoadedClassifier classifier =
+                        ClassifierRegistry.getInstance().get(context.getBroker(), classifierPath);
+                final MemTreeBuilder builder = context.getDocumentBuilder();
+                final EntityMarkup markup = new EntityMarkup(context.getBroker(), builder, new DocumentBuilderReceiver(builder));
+                final ValueSequence result = new ValueSequence(texts.length);
+
+                if (parallelism == 1) {
+                    for (String text : texts) {
+                        writeResult(builder, markup, classifier.classify(text), result);
+                        context.getWatchDog().proceed(this);
+                    }
+                    return result;
+                }
+
+                // at most one chunk per thread in flight, so no more than parallelism threads classify
+                // at once and results do not pile up in memory
+                final int maxPending = parallelism;
+                final Deque<Future<List<List<List<CoreLabel>>>>> pending = new ArrayDeque<>(maxPending);
+                int next = 0;
+                try {
+                    while (next < texts.length || !pending.isEmpty()) {
+                        while (next < texts.length && pending.size() < maxPending) {
+                            final int start = next;
+                            final int end = Math.min(texts.length, start + chunkSize);
+                            pending.add(WorkerPool.getExecutor().submit(
+                                    Limits.wrap(() -> classifyChunk(classifier, texts, start, end))));
+                            next = end;
+                        }
+                        for (List<List<CoreLabel>> out : await(pending.poll())) {
+                            writeResult(builder, markup, out, result);
+                        }
+                        context.getWatchDog().proceed(this);
+                    }
+                } finally {
+                    for (Future<?> future : pending) {
+                        future.cancel(true);
+                    }
+                }
+                return result;
+            } catch (SAXException e) {
+                throw new XPathException(this, e);
+            } finally {
+                context.popDocumentContext();
+            }
+        } catch (Limits.LimitExceededException e) {
+            throw e.getError();
+        } finally {
+            call.exit();
+            Metrics.getInstance().call(getSignature().getName().getLocalPart(), startTime);
+        }
+    }
+
+    private static List<List<List<CoreLabel>>> classifyChunk(LoadedClassifier classifier,
+                                                             String[] texts, int start, int end) {
+        final List<List<List<CoreLabel>>> chunk = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            chunk.add(classifier.classify(texts[i]));
+        }
+        return chunk;
+    }
+
+    private void writeResult(MemTreeBuilder builder, EntityMarkup markup, List<List<CoreLabel>> out, ValueSequence result)
+            throws XPathException, SAXException {
+        final int nodeNr = builder.startElement("", "result", "result", null);
+        markup.write(out, null, null);
+        builder.endElement();
+        result.add(builder.getDocument().getNode(nodeNr));
+    }
+
+    private <T> T await(Future<T> future) throws XPathException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(this, "Interrupted while waiting for classification results");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Limits.LimitExceededException) {
+                throw ((Limits.LimitExceededException) e.getCause()).getError();
+            }
+            throw new XPathException(this, "Error while classifying text: " + e.getCause().getMessage());
+        }
+    }
+}
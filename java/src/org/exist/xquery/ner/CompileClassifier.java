@@ -0,0 +1,67 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+/**
+ * Write a compiled copy of a classifier, see {@link ModelStore}.
+ */
+public class CompileClassifier extends BasicFunction {
+
+    public final static FunctionSignature signature =
+        new FunctionSignature(
+            new QName("compile-classifier", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Convert the classifier into an uncompressed copy stored below the eXist data directory. " +
+            "Subsequent loads of the classifier read the copy through a memory mapped file, which is " +
+            "considerably faster than decompressing the original. The copy is only used as long as the " +
+            "classifier resource is not modified. Only available to DBA users.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                    "The path to the serialized classifier. Should point to a binary resource " +
+                    "stored within the database")
+            },
+            new FunctionReturnSequenceType(Type.LONG, Cardinality.EXACTLY_ONE,
+                "The size of the compiled copy in bytes")
+        );
+
+    public CompileClassifier(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        if (!context.getSubject().hasDbaRole()) {
+            throw new XPathException(this, "Permission denied: only DBA users may compile classifiers");
+        }
+        final String path = args[0].getStringValue();
+        final LoadedClassifier loaded = ClassifierRegistry.getInstance().get(context.getBroker(), path);
+        if (!(loaded.getClassifier() instanceof CRFClassifier)) {
+            throw new XPathException(this, "Only CRF classifiers can be compiled: " + path);
+        }
+        final long size = ModelStore.getInstance().compile(path, loaded.getLastModified(),
+                (CRFClassifier<CoreLabel>) loaded.getClassifier());
+        return new IntegerValue(size, Type.LONG);
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.NodeImpl;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeHandle;
+import org.exist.storage.BrokerPool;
+import org.exist.xquery.XPathException;
+import org.w3c.dom.Node;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Maps entities, identified by their type and normalized text, to the documents and text nodes
+ * mentioning them, so questions like "which documents mention X" can be answered without
+ * reading the documents.
+ *
+ * The index is held in memory and persisted as an append-only log in the directory
+ * stanford-ner/entities below the eXist data directory. Each record replaces the entries of one
+ * document; an empty record removes the document. The log is replayed when the index is first used
+ * and rewritten once it contains many outdated records. Documents are added by jobs and the
+ * trigger if the "index" option is enabled.
+ */
+public class EntityIndex {
+
+    private final static Logger LOG = LogManager.getLogger(EntityIndex.class);
+
+    private final static EntityIndex instance = new EntityIndex();
+
+    public static EntityIndex getInstance() {
+        return instance;
+    }
+
+    private final static String LOG_FILE = "entities.log";
+
+    /** rewrite the log once it holds this many records more than there are indexed documents */
+    private final static int COMPACT_THRESHOLD = 10000;
+
+    /**
+     * An occurrence of an entity in a text node.
+     */
+    public static class Occurrence {
+
+        private final String type;
+        private final String text;
+        private final String nodeId;
+
+        public Occurrence(String type, String text, String nodeId) {
+            this.type = type;
+            this.text = text;
+            this.nodeId = nodeId;
+        }
+    }
+
+    /**
+     * Records the entities found while a document is annotated, so the document does not have to
+     * be classified again to index it. The handlers doing the annotation report every text node as
+     * it arrives and the spans found in the text classified; text nodes are numbered in document
+     * order and mapped to node ids by {@link #resolve}.
+     */
+    public static class Collector {
+
+        private final List<String> types = new ArrayList<>();
+        private final List<String> texts = new ArrayList<>();
+        private final List<Integer> positions = new ArrayList<>();
+
+        /** offsets of the text nodes within the text to be classified next */
+        private final List<Integer> offsets = new ArrayList<>();
+        private int count = 0;
+
+        /**
+         * A text node starts at the given offset of the text classified next.
+         */
+        public void text(int offset) {
+            offsets.add(offset);
+            count++;
+        }
+
+        /**
+         * The text containing the text nodes reported since the last call was classified.
+         */
+        public void found(List<EntitySpan> spans, CharSequence text) {
+            final int first = count - offsets.size();
+            int node = 0;
+            for (EntitySpan span : spans) {
+                while (node + 1 < offsets.size() && offsets.get(node + 1) <= span.getStart()) {
+                    node++;
+                }
+                types.add(span.getElementName());
+                texts.add(text.subSequence(span.getStart(), span.getEnd()).toString());
+                positions.add(first + node);
+            }
+            offsets.clear();
+        }
+
+        /**
+         * The text nodes reported since the last call were not classified.
+         */
+        public void skip() {
+            offsets.clear();
+        }
+
+        /**
+         * The occurrences found, with the ids of the document's text nodes. Returns null if the
+         * number of text nodes in the document differs from the number reported.
+         */
+        public List<Occurrence> resolve(DocumentImpl doc) {
+            final List<String> nodeIds = new ArrayList<>(count);
+            final Node root = doc.getDocumentElement();
+            if (root != null) {
+                collectTextNodes(root, nodeIds);
+            }
+            if (nodeIds.size() != count) {
+                return null;
+            }
+            final List<Occurrence> occurrences = new ArrayList<>(types.size());
+            for (int i = 0; i < types.size(); i++) {
+                occurrences.add(new Occurrence(types.get(i), texts.get(i), nodeIds.get(positions.get(i))));
+            }
+            return occurrences;
+        }
+
+        private static void collectTextNodes(Node node, List<String> nodeIds) {
+            if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+                nodeIds.add(getNodeId(node));
+                return;
+            }
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                collectTextNodes(child, nodeIds);
+            }
+        }
+    }
+
+    /**
+     * Number of occurrences of an entity and of documents mentioning it.
+     */
+    public static class Count {
+
+        private final String type;
+        private final String text;
+        private int occurrences = 0;
+        private int documents = 0;
+
+        Count(String type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public int getOccurrences() {
+            return occurrences;
+        }
+
+        public int getDocuments() {
+            return documents;
+        }
+    }
+
+    /** key (type + '\0' + normalized text) -> document path -> node ids */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, String[]>> entities = new ConcurrentHashMap<>();
+
+    /** normalized text -> types of the entities with this text, for lookups without a type */
+    private final ConcurrentHashMap<String, Set<String>> types = new ConcurrentHashMap<>();
+
+    /** document path -> keys of the entities it mentions */
+    private final ConcurrentHashMap<String, Set<String>> documents = new ConcurrentHashMap<>();
+
+    private volatile File directory = null;
+    private DataOutputStream log = null;
+    private int records = 0;
+
+    private EntityIndex() {
+    }
+
+    /**
+     * Locate the index below the data directory and load it. Only the first call has an effect.
+     */
+    public void configure(BrokerPool pool) {
+        if (directory != null) {
+            return;
+        }
+        final File dir = StanfordNERModule.getDataDirectory(pool, "entities");
+        if (dir == null) {
+            return;
+        }
+        synchronized (this) {
+            if (directory != null) {
+                return;
+            }
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                LOG.warn("Unable to create entity index directory " + dir.getAbsolutePath());
+                return;
+            }
+            final boolean complete = replay(new File(dir, LOG_FILE));
+            directory = dir;
+            if (!complete) {
+                // appending to a damaged log would make the following records unreadable
+                try {
+                    compact();
+                } catch (IOException e) {
+                    LOG.warn("Failed to rewrite entity index log: " + e.getMessage());
+                    directory = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the entities in the text nodes of the document, classifying each of them.
+     */
+    public static List<Occurrence> extract(LoadedClassifier classifier, DocumentImpl doc) {
+        final List<Occurrence> occurrences = new ArrayList<>();
+        final Node root = doc.getDocumentElement();
+        if (root != null) {
+            extract(classifier, root, occurrences);
+        }
+        return occurrences;
+    }
+
+    private static void extract(LoadedClassifier classifier, Node node, List<Occurrence> occurrences) {
+        if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+            final String text = node.getNodeValue();
+            if (text.trim().length() > 0) {
+                final String nodeId = getNodeId(node);
+                for (EntitySpan span : EntitySpan.find(classifier.classify(text))) {
+                    occurrences.add(new Occurrence(span.getElementName(),
+                            text.substring(span.getStart(), span.getEnd()), nodeId));
+                }
+            }
+            return;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            extract(classifier, child, occurrences);
+        }
+    }
+
+    private static String getNodeId(Node node) {
+        if (node instanceof NodeHandle) {
+            return ((NodeHandle) node).getNodeId().toString();
+        }
+        if (node instanceof NodeImpl) {
+            return ((NodeImpl) node).getNodeId().toString();
+        }
+        return "";
+    }
+
+    /**
+     * Replace the entries of the document with the occurrences recorded by the collector while it
+     * was annotated. If the collector cannot be matched up with the document, it is classified again.
+     */
+    public void index(DocumentImpl doc, Collector collector, LoadedClassifier classifier) throws XPathException {
+        List<Occurrence> occurrences = collector.resolve(doc);
+        if (occurrences == null) {
+            LOG.debug("Text nodes of " + doc.getURI() + " do not match the annotated text, classifying again");
+            occurrences = extract(classifier, doc);
+        }
+        index(doc.getURI().toString(), occurrences);
+    }
+
+    /**
+     * Replace the entries of the document with the given occurrences.
+     */
+    public void index(String docPath, List<Occurrence> occurrences) throws XPathException {
+        final Map<String, List<String>> byKey = new LinkedHashMap<>();
+        for (Occurrence occurrence : occurrences) {
+            byKey.computeIfAbsent(key(occurrence.type, occurrence.text), k -> new ArrayList<>())
+                    .add(occurrence.nodeId);
+        }
+        final Map<String, String[]> entries = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : byKey.entrySet()) {
+            entries.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        synchronized (this) {
+            write(docPath, entries);
+            apply(docPath, entries);
+        }
+    }
+
+    /**
+     * Drop all entries of the document.
+     */
+    public void remove(String docPath) throws XPathException {
+        synchronized (this) {
+            if (documents.containsKey(docPath)) {
+                write(docPath, Collections.<String, String[]>emptyMap());
+                apply(docPath, Collections.<String, String[]>emptyMap());
+            }
+        }
+    }
+
+    /**
+     * The documents mentioning the entity, mapped to the ids of the text nodes containing it.
+     * If type is null, entities of all types with the given text are reported.
+     */
+    public Map<String, List<String>> getDocuments(String type, String text) {
+        final Map<String, List<String>> result = new LinkedHashMap<>();
+        final String normalized = normalize(text);
+        if (type != null) {
+            addDocuments(type.toLowerCase(), normalized, result);
+        } else {
+            final Set<String> typesOfText = types.get(normalized);
+            if (typesOfText != null) {
+                for (String t : typesOfText) {
+                    addDocuments(t, normalized, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addDocuments(String type, String normalized, Map<String, List<String>> result) {
+        final ConcurrentHashMap<String, String[]> docs = entities.get(type + '\0' + normalized);
+        if (docs == null) {
+            return;
+        }
+        for (Map.Entry<String, String[]> doc : docs.entrySet()) {
+            final List<String> nodeIds = result.computeIfAbsent(doc.getKey(), k -> new ArrayList<>());
+            Collections.addAll(nodeIds, doc.getValue());
+        }
+    }
+
+    /**
+     * Count the occurrences of all entities of the given type (or of all types if type is null),
+     * most frequent first. Only documents whose path is accepted by the filter are counted.
+     */
+    public List<Count> getCounts(String type, Predicate<String> filter) {
+        final List<Count> counts = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, String[]>> entry : entities.entrySet()) {
+            final String key = entry.getKey();
+            final int sep = key.indexOf('\0');
+            if (type != null && !key.substring(0, sep).equals(type.toLowerCase())) {
+                continue;
+            }
+            final Count count = new Count(key.substring(0, sep), key.substring(sep + 1));
+            for (Map.Entry<String, String[]> doc : entry.getValue().entrySet()) {
+                if (filter.test(doc.getKey())) {
+                    count.occurrences += doc.getValue().length;
+                    count.documents++;
+                }
+            }
+            if (count.documents > 0) {
+                counts.add(count);
+            }
+        }
+        Collections.sort(counts, (a, b) -> a.occurrences != b.occurrences ?
+                Integer.compare(b.occurrences, a.occurrences) : a.text.compareTo(b.text));
+        return counts;
+    }
+
+    public int getDocumentCount() {
+        return documents.size();
+    }
+
+    /**
+     * Entities are compared case-insensitively and with normalized whitespace.
+     */
+    static String normalize(String text) {
+        return text.trim().replaceAll("\\s+", " ").toLowerCase();
+    }
+
+    private static String key(String type, String text) {
+        return type + '\0' + normalize(text);
+    }
+
+    private void apply(String docPath, Map<String, String[]> entries) {
+        final Set<String> previous = documents.remove(docPath);
+        if (previous != null) {
+            for (String key : previous) {
+                final ConcurrentHashMap<String, String[]> docs = entities.get(key);
+                if (docs != null) {
+                    docs.remove(docPath);
+                    if (docs.isEmpty()) {
+                        entities.remove(key);
+                        removeType(key);
+                    }
+                }
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+            entities.computeIfAbsent(entry.getKey(), k -> new ConcurrentHashMap<>()).put(docPath, entry.getValue());
+            final String key = entry.getKey();
+            final int sep = key.indexOf('\0');
+            types.computeIfAbsent(key.substring(sep + 1), k -> ConcurrentHashMap.newKeySet()).add(key.substring(0, sep));
+        }
+        documents.put(docPath, new HashSet<>(entries.keySet()));
+    }
+
+    private void removeType(String key) {
+        final int sep = key.indexOf('\0');
+        final String text = key.substring(sep + 1);
+        final Set<String> typesOfText = types.get(text);
+        if (typesOfText != null) {
+            typesOfText.remove(key.substring(0, sep));
+            if (typesOfText.isEmpty()) {
+                types.remove(text);
+            }
+        }
+    }
+
+    private void write(String docPath, Map<String, String[]> entries) throws XPathException {
+        if (directory == null) {
+            return;
+        }
+        try {
+            if (records > documents.size() + COMPACT_THRESHOLD) {
+                compact();
+            }
+            if (log == null) {
+                log = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(new File(directory, LOG_FILE), true)));
+            }
+            writeRecord(log, docPath, entries);
+            log.flush();
+            records++;
+        } catch (IOException e) {
+            throw new XPathException("Error while writing entity index: " + e.getMessage());
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String docPath, Map<String, String[]> entries)
+            throws IOException {
+        out.writeUTF(docPath);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().length);
+            for (String nodeId : entry.getValue()) {
+                out.writeUTF(nodeId);
+            }
+        }
+    }
+
+    /**
+     * Write the current state to a new log and replace the old one.
+     */
+    private void compact() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+        final File file = new File(directory, LOG_FILE);
+        final File temp = new File(directory, LOG_FILE + ".tmp");
+        int written = 0;
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            for (Map.Entry<String, Set<String>> doc : documents.entrySet()) {
+                final Map<String, String[]> entries = new HashMap<>();
+                for (String key : doc.getValue()) {
+                    final ConcurrentHashMap<String, String[]> docs = entities.get(key);
+                    final String[] nodeIds = docs == null ? null : docs.get(doc.getKey());
+                    if (nodeIds != null) {
+                        entries.put(key, nodeIds);
+                    }
+                }
+                writeRecord(out, doc.getKey(), entries);
+                written++;
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = written;
+    }
+
+    /**
+     * Load the log. Returns false if it could not be read completely.
+     */
+    private boolean replay(File file) {
+        if (!file.exists()) {
+            return true;
+        }
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                final String docPath;
+                try {
+                    docPath = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                final int count = in.readInt();
+                final Map<String, String[]> entries = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    final String key = in.readUTF();
+                    final String[] nodeIds = new String[in.readInt()];
+                    for (int j = 0; j < nodeIds.length; j++) {
+                        nodeIds[j] = in.readUTF();
+                    }
+                    entries.put(key, nodeIds);
+                }
+                apply(docPath, entries);
+                records++;
+            }
+        } catch (EOFException e) {
+            LOG.warn("Entity index log " + file.getAbsolutePath() + " ends with an incomplete record, which is ignored");
+            return false;
+        } catch (IOException e) {
+            LOG.warn("Error while reading entity index log " + file.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        }
+        LOG.info("Loaded entity index with " + documents.size() + " documents");
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.dom.QName;
+import org.exist.security.PermissionDeniedException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Query the {@link EntityIndex}.
+ */
+public class EntityIndexFunctions extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+        new FunctionSignature(
+            new QName("documents-mentioning", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Look up the documents mentioning an entity in the entity index, without reading the documents. " +
+            "Entities are compared case-insensitively. Returns one map per document with the keys " +
+            "'document' (the path of the document), 'count' (the number of occurrences) and 'node-ids' " +
+            "(the ids of the text nodes containing the entity). Only documents the current user may " +
+            "read are reported.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("type", Type.STRING, Cardinality.ZERO_OR_ONE,
+                    "The type of the entity, e.g. 'person'. If empty, entities of any type match."),
+                new FunctionParameterSequenceType("text", Type.STRING, Cardinality.EXACTLY_ONE,
+                    "The text of the entity, e.g. 'New York'")
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "One map per document")
+        ),
+        new FunctionSignature(
+            new QName("entity-counts", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Report the entities in the entity index, most frequent first. Returns one map per entity with " +
+            "the keys 'type', 'text' (lower-cased), 'count' (the number of occurrences) and 'documents' " +
+            "(the number of documents mentioning it). Only documents the current user may read are counted.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("type", Type.STRING, Cardinality.ZERO_OR_ONE,
+                    "Only report entities of this type. If empty, all entities are reported.")
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "One map per entity")
+        ),
+        new FunctionSignature(
+            new QName("entity-counts", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Report the most frequent entities in the entity index. Returns one map per entity with " +
+            "the keys 'type', 'text' (lower-cased), 'count' (the number of occurrences) and 'documents' " +
+            "(the number of documents mentioning it). Only documents the current user may read are counted.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("type", Type.STRING, Cardinality.ZERO_OR_ONE,
+                    "Only report entities of this type. If empty, all entities are reported."),
+                new FunctionParameterSequenceType("limit", Type.INTEGER, Cardinality.EXACTLY_ONE,
+                    "The maximum number of entities to report")
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "One map per entity")
+        )
+    };
+
+    public EntityIndexFunctions(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final EntityIndex index = EntityIndex.getInstance();
+        index.configure(context.getBroker().getBrokerPool());
+        final String type = args[0].isEmpty() ? null : args[0].getStringValue();
+        final ValueSequence result = new ValueSequence();
+        if (isCalledAs("documents-mentioning")) {
+            for (Map.Entry<String, List<String>> entry : index.getDocuments(type, args[1].getStringValue()).entrySet()) {
+                if (!isReadable(entry.getKey())) {
+                    continue;
+                }
+                final ValueSequence nodeIds = new ValueSequence();
+                for (String nodeId : entry.getValue()) {
+                    nodeIds.add(new StringValue(nodeId));
+                }
+                final MapType map = new MapType(context);
+                map.add(new StringValue("document"), new StringValue(entry.getKey()));
+                map.add(new StringValue("count"), new IntegerValue(entry.getValue().size()));
+                map.add(new StringValue("node-ids"), nodeIds);
+                result.add(map);
+            }
+        } else {
+            final long limit = args.length > 1 ? ((IntegerValue) args[1].itemAt(0)).getLong() : Long.MAX_VALUE;
+            final Map<String, Boolean> readable = new HashMap<>();
+            final List<EntityIndex.Count> counts =
+                    index.getCounts(type, path -> readable.computeIfAbsent(path, this::isReadable));
+            for (EntityIndex.Count count : counts) {
+                if (result.getItemCount() >= limit) {
+                    break;
+                }
+                final MapType map = new MapType(context);
+                map.add(new StringValue("type"), new StringValue(count.getType()));
+                map.add(new StringValue("text"), new StringValue(count.getText()));
+                map.add(new StringValue("count"), new IntegerValue(count.getOccurrences()));
+                map.add(new StringValue("documents"), new IntegerValue(count.getDocuments()));
+                result.add(map);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check that the document still exists and can be read by the current user. Only the
+     * metadata of the document is accessed.
+     */
+    private boolean isReadable(String path) {
+        try {
+            return context.getBroker().getXMLResource(XmldbURI.createInternal(path)) != null;
+        } catch (PermissionDeniedException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Receives a document as SAX events and writes the list of entities found in it to another
+ * content handler:
+ *
+ * <pre>&lt;entities source="/db/texts/a.xml"&gt;&lt;entity type="person"&gt;John Smith&lt;/entity&gt;...&lt;/entities&gt;</pre>
+ *
+ * Text is classified text node by text node, or element by element for the given block elements.
+ */
+public class EntityListHandler extends DefaultHandler {
+
+    private final LoadedClassifier classifier;
+    private final Set<String> blocks;
+    private final ContentHandler output;
+    private final String source;
+
+    private final StringBuilder text = new StringBuilder();
+    private int blockLevel = 0;
+    private char[] buffer = new char[64];
+
+    private EntityIndex.Collector collector = null;
+
+    public EntityListHandler(LoadedClassifier classifier, Set<String> blocks, ContentHandler output, String source) {
+        this.classifier = classifier;
+        this.blocks = blocks;
+        this.output = output;
+        this.source = source;
+    }
+
+    /**
+     * Report the entities found to the given collector, see {@link EntityIndex.Collector}.
+     */
+    public void setCollector(EntityIndex.Collector collector) {
+        this.collector = collector;
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        final AttributesImpl attribs = new AttributesImpl();
+        if (source != null) {
+            attribs.addAttribute("", "source", "source", "CDATA", source);
+        }
+        output.startElement("", "entities", "entities", attribs);
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        flush();
+        output.endElement("", "entities", "entities");
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        if (blocks != null && blocks.contains(localName)) {
+            flush();
+            blockLevel++;
+        } else if (blockLevel == 0) {
+            flush();
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (blockLevel > 0 && blocks.contains(localName)) {
+            flush();
+            blockLevel--;
+        } else if (blockLevel == 0) {
+            flush();
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (collector != null) {
+            collector.text(text.length());
+        }
+        text.append(ch, start, length);
+    }
+
+    private void flush() throws SAXException {
+        if (text.length() == 0) {
+            return;
+        }
+        final String s = text.toString();
+        text.setLength(0);
+        if (s.trim().isEmpty()) {
+            if (collector != null) {
+                collector.skip();
+            }
+            return;
+        }
+        final List<EntitySpan> spans = EntitySpan.find(classifier.classify(s));
+        if (collector != null) {
+            collector.found(spans, s);
+        }
+        for (EntitySpan span : spans) {
+            final AttributesImpl attribs = new AttributesImpl();
+            attribs.addAttribute("", "type", "type", "CDATA", span.getElementName());
+            output.startElement("", "entity", "entity", attribs);
+            final int length = span.getEnd() - span.getStart();
+            if (buffer.length < length) {
+                buffer = new char[Math.max(length, buffer.length * 2)];
+            }
+            s.getChars(span.getStart(), span.getEnd(), buffer, 0);
+            output.characters(buffer, 0, length);
+            output.endElement("", "entity", "entity");
+        }
+    }
+}
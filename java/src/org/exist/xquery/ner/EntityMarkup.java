@@ -0,0 +1,246 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.sequences.SeqClassifierFlags;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.storage.DBBroker;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.*;
+import org.xml.sax.SAXException;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Turns the output of the classifier into markup: the text is written to a {@link MemTreeBuilder}
+ * and every recognized entity is enclosed in an inline element named after the entity type.
+ */
+public class EntityMarkup implements CallbackWriter {
+
+    private final DBBroker broker;
+    private final MemTreeBuilder builder;
+    private final DocumentBuilderReceiver receiver;
+
+    private final static String BACKGROUND = SeqClassifierFlags.DEFAULT_BACKGROUND_SYMBOL;
+
+    /** text not yet written; kept between calls to {@link #append} */
+    private final StringBuilder buf = new StringBuilder();
+    private String prevTag = BACKGROUND;
+    private int nodeNr = 0;
+
+    /** nanoseconds spent in callback functions */
+    private long callbackTime = 0;
+
+    /** items replacing the entities instead of calling the callback, see {@link BatchCallback} */
+    private SequenceIterator replacements = null;
+
+    /**
+     * @param broker the broker used to copy nodes returned by a callback
+     * @param builder the builder to write to
+     * @param receiver a receiver writing to the same builder. Output of callbacks is passed to it.
+     */
+    public EntityMarkup(DBBroker broker, MemTreeBuilder builder, DocumentBuilderReceiver receiver) {
+        this.broker = broker;
+        this.builder = builder;
+        this.receiver = receiver;
+    }
+
+    /**
+     * Write the classified text. If result is not null, the top-level text nodes and elements
+     * written are added to it. If a callback is given, it is called for every entity and its
+     * return value replaces the entity.
+     */
+    public void write(List<List<CoreLabel>> out, ValueSequence result, FunctionReference callback) throws XPathException, SAXException {
+        append(out, result, callback);
+        flush(result);
+    }
+
+    /**
+     * Like {@link #write}, but text following the last entity is kept back, so the output of
+     * the next call continues the same text node. Used to write the output for a long text
+     * piece by piece. The pieces must end at sentence boundaries or after an entity. Call
+     * {@link #flush} after the last piece.
+     */
+    public void append(List<List<CoreLabel>> out, ValueSequence result, FunctionReference callback) throws XPathException, SAXException {
+        final long start = System.nanoTime();
+        final long callbacks = callbackTime;
+        try {
+            final String background = BACKGROUND;
+            for (List<CoreLabel> sentence : out) {
+                for (Iterator<CoreLabel> wordIter = sentence.iterator(); wordIter.hasNext(); ) {
+                    CoreLabel word = wordIter.next();
+                    final String current = word.get(CoreAnnotations.OriginalTextAnnotation.class);
+                    final String tag = word.get(CoreAnnotations.AnswerAnnotation.class);
+                    final String before = word.get(CoreAnnotations.BeforeAnnotation.class);
+                    final String after = word.get(CoreAnnotations.AfterAnnotation.class);
+                    if (!tag.equals(prevTag)) {
+                        if (!prevTag.equals(background) && !tag.equals(background)) {
+                            if (callback == null) {
+                                writeText(buf, null);
+                                builder.endElement();
+                                if (result != null) {
+                                    result.add(builder.getDocument().getNode(nodeNr));
+                                }
+                            } else {
+                                execCallback(callback, buf, prevTag);
+                            }
+                            if (before != null)
+                                buf.append(before);
+                            writeText(buf, result);
+                            if (callback == null) {
+                                nodeNr = startEntityElement(tag);
+                            }
+                        } else if (!prevTag.equals(background)) {
+                            if (callback == null) {
+                                writeText(buf, null);
+                                builder.endElement();
+                                if (result != null) {
+                                    result.add(builder.getDocument().getNode(nodeNr));
+                                }
+                            } else {
+                                execCallback(callback, buf, prevTag);
+                            }
+                            if (before != null)
+                                buf.append(before);
+                        } else if (!tag.equals(background)) {
+                            if (before != null)
+                                buf.append(before);
+                            writeText(buf, result);
+                            if (callback == null) {
+                                nodeNr = startEntityElement(tag);
+                            }
+                        }
+                    } else {
+                        if (before != null)
+                            buf.append(before);
+                    }
+                    buf.append(current);
+
+                    if (!tag.equals(background) && !wordIter.hasNext()) {
+                        if (callback == null) {
+                            writeText(buf, result);
+                            builder.endElement();
+                        } else {
+                            execCallback(callback, buf, tag);
+                        }
+                        prevTag = background;
+                    } else {
+                        prevTag = tag;
+                    }
+                    if (after != null)
+                        buf.append(after);
+                }
+            }
+        } finally {
+            Metrics.getInstance().time(Metrics.MARKUP, start, callbackTime - callbacks);
+        }
+    }
+
+    /**
+     * Write any text kept back by {@link #append}.
+     */
+    public void flush(ValueSequence result) {
+        writeText(buf, result);
+        prevTag = BACKGROUND;
+    }
+
+    private void execCallback(FunctionReference callback, StringBuilder buf, String prevTag) throws XPathException, SAXException {
+        callback(callback, prevTag, buf.toString());
+        buf.setLength(0);
+    }
+
+    /**
+     * Write the given items, one per entity and in order, instead of calling the callback for
+     * every entity. Pass null to call the callback again.
+     */
+    public void setReplacements(Sequence items) throws XPathException {
+        replacements = items == null ? null : items.iterate();
+    }
+
+    @Override
+    public void callback(FunctionReference callback, String tag, String content) throws XPathException, SAXException {
+        if (replacements != null) {
+            if (replacements.hasNext()) {
+                writeItem(replacements.nextItem());
+            }
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            final StringValue tagName = new StringValue(tag);
+            Sequence result = callback.evalFunction(null, null, new Sequence[] { tagName, new StringValue(content) });
+            for (SequenceIterator iterator = result.iterate(); iterator.hasNext(); ) {
+                writeItem(iterator.nextItem());
+            }
+        } finally {
+            callbackTime += System.nanoTime() - start;
+            Metrics.getInstance().time(Metrics.CALLBACK, start);
+        }
+    }
+
+    @Override
+    public long getCallbackTime() {
+        return callbackTime;
+    }
+
+    private void writeItem(Item item) throws XPathException, SAXException {
+        if (Type.subTypeOf(item.getType(), Type.NODE)) {
+            item.copyTo(broker, receiver);
+        } else {
+            receiver.characters(item.getStringValue());
+        }
+    }
+
+    @Override
+    public void startEntity(String tag) {
+        startEntityElement(tag);
+    }
+
+    private int startEntityElement(String tag) {
+        final String name = EntitySpan.getElementName(tag);
+        return builder.startElement("", name, name, null);
+    }
+
+    @Override
+    public void endEntity() {
+        builder.endElement();
+    }
+
+    @Override
+    public void text(CharSequence text) {
+        if (text.length() > 0) {
+            builder.characters(text);
+        }
+    }
+
+    private void writeText(StringBuilder buf, ValueSequence result) {
+        if (buf.length() > 0) {
+            // the builder copies the characters, so the buffer can be reused right away
+            int node = builder.characters(buf);
+            if (result != null) {
+                result.add(builder.getDocument().getNode(node));
+            }
+            buf.setLength(0);
+        }
+    }
+}
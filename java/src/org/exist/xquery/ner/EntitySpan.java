@@ -0,0 +1,112 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.sequences.SeqClassifierFlags;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An entity recognized by the classifier: its type and the character offsets of its first and last
+ * token within the classified text. Like {@link EntityMarkup}, consecutive tokens with the same type
+ * form one entity, but an entity never extends beyond the end of a sentence.
+ */
+public class EntitySpan {
+
+    /**
+     * Element names by classifier tag. Models only use a handful of tags, so this stays small.
+     */
+    private final static ConcurrentHashMap<String, String> elementNames = new ConcurrentHashMap<>();
+
+    private final String type;
+    private final int start;
+    private final int end;
+
+    public EntitySpan(String type, int start, int end) {
+        this.type = type;
+        this.start = start;
+        this.end = end;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * The name of the element to wrap the entity into, i.e. the lower-cased type.
+     */
+    public String getElementName() {
+        return getElementName(type);
+    }
+
+    /**
+     * Map a tag assigned by the classifier to an element name. The names are computed once
+     * and shared, so writing markup does not create a new string per entity.
+     */
+    public static String getElementName(String tag) {
+        final String name = elementNames.get(tag);
+        if (name != null) {
+            return name;
+        }
+        return elementNames.computeIfAbsent(tag, t -> t.toLowerCase().intern());
+    }
+
+    /**
+     * Offset of the first character of the entity.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Offset following the last character of the entity.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    public static List<EntitySpan> find(List<List<CoreLabel>> out) {
+        final String background = SeqClassifierFlags.DEFAULT_BACKGROUND_SYMBOL;
+        final List<EntitySpan> spans = new ArrayList<>();
+        for (List<CoreLabel> sentence : out) {
+            String type = background;
+            int start = 0;
+            int end = 0;
+            for (CoreLabel word : sentence) {
+                final String tag = word.get(CoreAnnotations.AnswerAnnotation.class);
+                if (!tag.equals(type)) {
+                    if (!type.equals(background)) {
+                        spans.add(new EntitySpan(type, start, end));
+                    }
+                    type = tag;
+                    start = word.beginPosition();
+                }
+                end = word.endPosition();
+            }
+            if (!type.equals(background)) {
+                spans.add(new EntitySpan(type, start, end));
+            }
+        }
+        return spans;
+    }
+}
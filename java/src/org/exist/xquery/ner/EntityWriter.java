@@ -0,0 +1,40 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Target for the marked up output of the classifier.
+ */
+public interface EntityWriter {
+
+    /**
+     * Start the inline element for an entity of the given type.
+     */
+    void startEntity(String tag) throws SAXException;
+
+    void endEntity() throws SAXException;
+
+    /**
+     * Write text. The character sequence may be a view on a buffer which is reused after
+     * the call returns, so implementations must copy it if they need to keep it.
+     */
+    void text(CharSequence text) throws SAXException;
+}
@@ -0,0 +1,127 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.dom.QName;
+import org.exist.dom.persistent.NodeHandle;
+import org.exist.dom.memtree.NodeImpl;
+import org.exist.numbering.NodeId;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+import org.w3c.dom.Node;
+
+import java.util.List;
+
+/**
+ * Return the entities found in a string or node as a sequence of maps. Unlike
+ * ner:classify-string and ner:classify-node, no markup is created.
+ */
+public class ExtractEntities extends BasicFunction {
+
+    public final static FunctionSignature signature =
+        new FunctionSignature(
+            new QName("extract-entities", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Find the named entities in a string or in the text nodes of a node, without creating any markup. " +
+            "Returns one map per entity with the keys 'type' (e.g. 'person'), 'text', 'start' and 'end'. " +
+            "'start' is the offset of the first character of the entity, 'end' the offset following its " +
+            "last character, both counted from 0. If the input is a node, offsets are relative to the " +
+            "text node containing the entity, whose node id is returned under the key 'node-id'.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                    "The path to the serialized classifier to load. Should point to a binary resource " +
+                    "stored within the database"),
+                new FunctionParameterSequenceType("input", Type.ITEM, Cardinality.ZERO_OR_ONE,
+                    "The string or node to analyze.")
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE,
+                "One map per entity, in document order")
+        );
+
+    public ExtractEntities(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final long startTime = System.nanoTime();
+        final Limits.Call call = Limits.enter(context, this);
+        try {
+            if (args[1].isEmpty()) {
+                return Sequence.EMPTY_SEQUENCE;
+            }
+            final LoadedClassifier classifier =
+                    ClassifierRegistry.getInstance().get(context.getBroker(), args[0].getStringValue());
+            final Item input = args[1].itemAt(0);
+            final ValueSequence result = new ValueSequence();
+            if (Type.subTypeOf(input.getType(), Type.NODE)) {
+                extract(classifier, ((NodeValue) input).getNode(), result);
+            } else {
+                extract(classifier, input.getStringValue(), null, result);
+            }
+            return result;
+        } catch (Limits.LimitExceededException e) {
+            throw e.getError();
+        } finally {
+            call.exit();
+            Metrics.getInstance().call(getSignature().getName().getLocalPart(), startTime);
+        }
+    }
+
+    private void extract(LoadedClassifier classifier, Node node, ValueSequence result)
+            throws XPathException {
+        if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+            final String text = node.getNodeValue();
+            if (text.trim().length() > 0) {
+                context.getWatchDog().proceed(this);
+                extract(classifier, text, getNodeId(node), result);
+            }
+            return;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            extract(classifier, child, result);
+        }
+    }
+
+    private void extract(LoadedClassifier classifier, String text, NodeId nodeId,
+                         ValueSequence result) throws XPathException {
+        final List<EntitySpan> spans = EntitySpan.find(classifier.classify(text));
+        for (EntitySpan span : spans) {
+            final MapType map = new MapType(context);
+            map.add(new StringValue("type"), new StringValue(span.getElementName()));
+            map.add(new StringValue("text"), new StringValue(text.substring(span.getStart(), span.getEnd())));
+            map.add(new StringValue("start"), new IntegerValue(span.getStart()));
+            map.add(new StringValue("end"), new IntegerValue(span.getEnd()));
+            if (nodeId != null) {
+                map.add(new StringValue("node-id"), new StringValue(nodeId.toString()));
+            }
+            result.add(map);
+        }
+    }
+
+    private static NodeId getNodeId(Node node) {
+        if (node instanceof NodeHandle) {
+            return ((NodeHandle) node).getNodeId();
+        }
+        if (node instanceof NodeImpl) {
+            return ((NodeImpl) node).getNodeId();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the annotated copies of documents up to date while they are stored, changed or
+ * removed. Called by {@link NERTrigger}, which only records the change: the document is
+ * annotated (and optionally added to the {@link EntityIndex}) later on a background thread, with system privileges, so the transaction which
+ * modified the document is not delayed.
+ *
+ * Changes are debounced: a document is processed once no further change to it has been seen
+ * for the configured delay. A series of updates to the same document thus results in one
+ * annotation run. Documents are processed one at a time.
+ *
+ * Every pending change is recorded in a file below stanford-ner/trigger in the eXist data
+ * directory until it has been processed, so changes which were still pending when the database
+ * was stopped are processed after a restart. A document which fails is retried up to
+ * {@link #MAX_ATTEMPTS} times, with the wait doubling after each attempt.
+ */
+public class IncrementalAnnotator {
+
+    private final static Logger LOG = LogManager.getLogger(IncrementalAnnotator.class);
+
+    public final static int MAX_ATTEMPTS = 5;
+
+    /** wait before the first retry of a failed document, in milliseconds */
+    public final static long RETRY_DELAY = 10000;
+
+    private final static IncrementalAnnotator instance = new IncrementalAnnotator();
+
+    public static IncrementalAnnotator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Configuration of a trigger: where the annotated copies go and how they are produced.
+     */
+    public static class Target {
+
+        private final String classifier;
+        private final XmldbURI source;
+        private final XmldbURI target;
+        private final boolean entities;
+        private final Set<String> blocks;
+        private final boolean index;
+        private final long delay;
+
+        public Target(String classifier, XmldbURI source, XmldbURI target, boolean entities, Set<String> blocks,
+                      boolean index, long delay) {
+            this.classifier = classifier;
+            this.source = source;
+            this.target = target;
+            this.entities = entities;
+            this.blocks = blocks;
+            this.index = index;
+            this.delay = delay;
+        }
+
+        /**
+         * True if the document is below the source collection, but not part of the output.
+         */
+        boolean accepts(XmldbURI docUri) {
+            return AnnotationStore.isInCollection(docUri, source) && !AnnotationStore.isInCollection(docUri, target);
+        }
+
+        void save(Properties props) {
+            props.setProperty("classifier", classifier);
+            props.setProperty("source", source.toString());
+            props.setProperty("target", target.toString());
+            props.setProperty("entities", Boolean.toString(entities));
+            if (blocks != null) {
+                props.setProperty("blocks", String.join(",", blocks));
+            }
+            props.setProperty("index", Boolean.toString(index));
+            props.setProperty("delay", Long.toString(delay));
+        }
+
+        static Target restore(Properties props) {
+            final String blocks = props.getProperty("blocks");
+            return new Target(props.getProperty("classifier"), XmldbURI.createInternal(props.getProperty("source")),
+                    XmldbURI.createInternal(props.getProperty("target")),
+                    Boolean.parseBoolean(props.getProperty("entities", "false")),
+                    blocks == null ? null : new HashSet<>(Arrays.asList(blocks.split(","))),
+                    Boolean.parseBoolean(props.getProperty("index", "false")),
+                    Long.parseLong(props.getProperty("delay", Long.toString(NERTrigger.DEFAULT_DELAY))));
+        }
+    }
+
+    private class Task implements Runnable {
+
+        private final String id;
+        private final BrokerPool pool;
+        private final Target target;
+        private final XmldbURI docUri;
+        private final boolean removed;
+        private volatile int attempts = 0;
+        private volatile ScheduledFuture<?> future = null;
+
+        Task(String id, BrokerPool pool, Target target, XmldbURI docUri, boolean removed) {
+            this.id = id;
+            this.pool = pool;
+            this.target = target;
+            this.docUri = docUri;
+            this.removed = removed;
+        }
+
+        @Override
+        public void run() {
+            if (!pending.remove(docUri, this)) {
+                // superseded by a later change to the document
+                return;
+            }
+            try {
+                process(this);
+                processed.incrementAndGet();
+                delete(this);
+            } catch (EXistException | PermissionDeniedException | XPathException | RuntimeException e) {
+                if (Job.isShuttingDown(pool)) {
+                    // keep the file, so the document is processed after a restart
+                    LOG.info("Update of annotations for " + docUri + " stopped because the database is shutting down");
+                    return;
+                }
+                if (++attempts < MAX_ATTEMPTS) {
+                    final long delay = RETRY_DELAY << (attempts - 1);
+                    LOG.warn("Failed to update annotations for " + docUri + ", retrying in " + delay + "ms: " +
+                            e.getMessage());
+                    retry(this, delay);
+                } else {
+                    failed.incrementAndGet();
+                    delete(this);
+                    LOG.warn("Failed to update annotations for " + docUri + ": " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<XmldbURI, Task> pending = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicBoolean resumed = new AtomicBoolean();
+
+    /** prefix of the ids of the tasks created since the database was started */
+    private final String session = UUID.randomUUID().toString();
+    private final AtomicLong ids = new AtomicLong();
+
+    private IncrementalAnnotator() {
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "stanford-ner-trigger");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * The document was stored or modified: (re-)annotate it after the delay.
+     */
+    public void changed(BrokerPool pool, Target target, XmldbURI docUri) {
+        if (target.accepts(docUri)) {
+            schedule(new Task(nextId(), pool, target, docUri, false));
+        }
+    }
+
+    /**
+     * The document was removed: remove its annotated copy after the delay.
+     */
+    public void removed(BrokerPool pool, Target target, XmldbURI docUri) {
+        if (target.accepts(docUri)) {
+            schedule(new Task(nextId(), pool, target, docUri, true));
+        }
+    }
+
+    /**
+     * Schedule the changes which were still pending when the database was stopped. Runs on a
+     * background thread once the database is available. Only the first call has an effect.
+     */
+    public void resume() {
+        if (!resumed.compareAndSet(false, true)) {
+            return;
+        }
+        final Thread thread = new Thread(() -> {
+            final BrokerPool pool = Preloader.waitForDatabase();
+            if (pool != null) {
+                resume(pool);
+            }
+        }, "stanford-ner-trigger-resume");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void resume(BrokerPool pool) {
+        final File directory = getDirectory(pool);
+        final File[] files = directory == null ? null :
+                directory.listFiles((dir, name) -> name.endsWith(".properties"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(session)) {
+                // recorded since the restart and already scheduled
+                continue;
+            }
+            final Properties props = new Properties();
+            try (final InputStream is = new FileInputStream(file)) {
+                props.load(is);
+            } catch (IOException e) {
+                LOG.warn("Failed to read pending change " + file.getAbsolutePath() + ": " + e.getMessage());
+                continue;
+            }
+            final String name = file.getName();
+            final Task task;
+            try {
+                if (props.getProperty("document") == null || props.getProperty("classifier") == null) {
+                    throw new IllegalArgumentException("document or classifier missing");
+                }
+                task = new Task(name.substring(0, name.length() - ".properties".length()), pool,
+                        Target.restore(props), XmldbURI.createInternal(props.getProperty("document")),
+                        Boolean.parseBoolean(props.getProperty("removed", "false")));
+                task.attempts = Integer.parseInt(props.getProperty("attempts", "0"));
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Invalid pending change " + file.getAbsolutePath() + ": " + e.getMessage());
+                file.delete();
+                continue;
+            }
+            if (pending.putIfAbsent(task.docUri, task) != null) {
+                // the document was changed again since the restart
+                file.delete();
+                continue;
+            }
+            LOG.info("Resuming pending update of annotations for " + task.docUri);
+            task.future = executor.schedule(task, task.target.delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private String nextId() {
+        return session + '-' + ids.incrementAndGet();
+    }
+
+    /**
+     * Number of documents waiting for the delay to expire.
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Install the task as the pending one for its document before scheduling it, so a task
+     * running immediately finds itself in the map. A previous task is cancelled; if it runs
+     * anyway, it notices that it was replaced and does nothing.
+     */
+    private void schedule(Task task) {
+        save(task);
+        final Task previous = pending.put(task.docUri, task);
+        if (previous != null) {
+            if (previous.future != null) {
+                previous.future.cancel(false);
+            }
+            delete(previous);
+        }
+        task.future = executor.schedule(task, task.target.delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedule a failed task again, unless the document has been changed in the meantime.
+     */
+    private void retry(Task task, long delay) {
+        if (pending.putIfAbsent(task.docUri, task) != null) {
+            delete(task);
+            return;
+        }
+        save(task);
+        task.future = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static void save(Task task) {
+        final File directory = getDirectory(task.pool);
+        if (directory == null) {
+            return;
+        }
+        final Properties props = new Properties();
+        task.target.save(props);
+        props.setProperty("document", task.docUri.toString());
+        props.setProperty("removed", Boolean.toString(task.removed));
+        props.setProperty("attempts", Integer.toString(task.attempts));
+        try (final OutputStream os = new FileOutputStream(new File(directory, task.id + ".properties"))) {
+            props.store(os, "stanford-ner pending change");
+        } catch (IOException e) {
+            LOG.warn("Failed to record pending change of " + task.docUri + ": " + e.getMessage());
+        }
+    }
+
+    private static void delete(Task task) {
+        final File directory = getDirectory(task.pool);
+        if (directory != null) {
+            new File(directory, task.id + ".properties").delete();
+        }
+    }
+
+    private static File getDirectory(BrokerPool pool) {
+        final File directory = StanfordNERModule.getDataDirectory(pool, "trigger");
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    private static void process(Task task) throws EXistException, PermissionDeniedException, XPathException {
+        final Target target = task.target;
+        final XmldbURI targetUri = AnnotationStore.getTargetPath(target.source, target.target, task.docUri);
+        final DBBroker broker = task.pool.get(task.pool.getSecurityManager().getSystemSubject());
+        try {
+            final DocumentImpl doc = task.removed ? null : broker.getXMLResource(task.docUri);
+            if (target.index) {
+                EntityIndex.getInstance().configure(task.pool);
+            }
+            if (doc == null) {
+                AnnotationStore.remove(broker, targetUri);
+                if (target.index) {
+                    EntityIndex.getInstance().remove(task.docUri.toString());
+                }
+            } else if (doc.getResourceType() == DocumentImpl.XML_FILE) {
+                final LoadedClassifier classifier = ClassifierRegistry.getInstance().get(broker, target.classifier);
+                final EntityIndex.Collector collector = target.index ? new EntityIndex.Collector() : null;
+                AnnotationStore.storeDocument(broker, classifier, target.entities, target.blocks, doc, targetUri,
+                        collector);
+                if (target.index) {
+                    EntityIndex.getInstance().index(doc, collector, classifier);
+                }
+            }
+        } finally {
+            task.pool.release(broker);
+        }
+    }
+}
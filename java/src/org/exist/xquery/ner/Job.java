@@ -0,0 +1,441 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A background job annotating all XML documents in a collection and its sub-collections. Results
+ * are stored into a target collection, using the same relative paths as in the source collection.
+ * Depending on the mode, a result is either the annotated document or the list of entities found
+ * in it (see {@link EntityListHandler}). Optionally, the entities are also added to the
+ * {@link EntityIndex}.
+ *
+ * The job definition and its state are kept in a properties file, and the path of every
+ * processed document is appended to a log. If the database is stopped while the job is running,
+ * the job is resumed on the next start, skipping the documents in the log.
+ *
+ * Jobs run with system privileges; only DBA users can submit them.
+ */
+public class Job implements Runnable {
+
+    private final static Logger LOG = LogManager.getLogger(Job.class);
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    public final static String MODE_MARKUP = "markup";
+    public final static String MODE_ENTITIES = "entities";
+
+    private final String id;
+    private final String classifier;
+    private final XmldbURI source;
+    private final XmldbURI target;
+    private final String mode;
+    private final Set<String> blocks;
+    private final boolean index;
+    private final int parallelism;
+    private final long submitted;
+    private final File stateFile;
+    private final File logFile;
+
+    private volatile State state = State.QUEUED;
+    private volatile String message = null;
+    private volatile long started = 0;
+    private volatile long finished = 0;
+    private volatile int total = -1;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private volatile Future<?> future = null;
+
+    /** paths of the documents processed in an earlier run */
+    private final Set<String> done = new HashSet<>();
+    private Writer log = null;
+
+    Job(String id, String classifier, XmldbURI source, XmldbURI target, String mode, Set<String> blocks,
+        boolean index, int parallelism, File directory) {
+        this.id = id;
+        this.classifier = classifier;
+        this.source = source;
+        this.target = target;
+        this.mode = mode;
+        this.blocks = blocks;
+        this.index = index;
+        this.parallelism = parallelism;
+        this.submitted = System.currentTimeMillis();
+        this.stateFile = new File(directory, id + ".properties");
+        this.logFile = new File(directory, id + ".log");
+    }
+
+    /**
+     * Restore a job from its state file. Returns null if the file cannot be read.
+     */
+    static Job restore(File stateFile) {
+        final Properties props = new Properties();
+        try (final InputStream is = new FileInputStream(stateFile)) {
+            props.load(is);
+        } catch (IOException e) {
+            LOG.warn("Failed to read job state " + stateFile.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+        final String name = stateFile.getName();
+        final String blocks = props.getProperty("blocks");
+        final Job job = new Job(name.substring(0, name.length() - ".properties".length()),
+                props.getProperty("classifier"), XmldbURI.createInternal(props.getProperty("source")),
+                XmldbURI.createInternal(props.getProperty("target")), props.getProperty("mode"),
+                blocks == null ? null : new HashSet<>(Arrays.asList(blocks.split(","))),
+                Boolean.parseBoolean(props.getProperty("index", "false")), Integer.parseInt(props.getProperty("parallelism", "1")), stateFile.getParentFile());
+        job.state = State.valueOf(props.getProperty("state"));
+        job.message = props.getProperty("message");
+        job.total = Integer.parseInt(props.getProperty("total", "-1"));
+        job.failed.set(Integer.parseInt(props.getProperty("failed", "0")));
+        job.started = Long.parseLong(props.getProperty("started", "0"));
+        job.finished = Long.parseLong(props.getProperty("finished", "0"));
+        if (job.logFile.exists()) {
+            try (final BufferedReader reader = new BufferedReader(new FileReader(job.logFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    job.done.add(line);
+                }
+            } catch (IOException e) {
+                LOG.warn("Failed to read job log " + job.logFile.getAbsolutePath() + ": " + e.getMessage());
+            }
+            job.processed.set(job.done.size());
+        }
+        return job;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getClassifier() {
+        return classifier;
+    }
+
+    public XmldbURI getSource() {
+        return source;
+    }
+
+    public XmldbURI getTarget() {
+        return target;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public long getFinished() {
+        return finished;
+    }
+
+    /**
+     * Number of documents to process, or -1 if not yet known.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public int getProcessed() {
+        return processed.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    boolean isFinished() {
+        return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    /**
+     * Request the job to stop. Documents currently being processed are completed.
+     */
+    void cancel() {
+        cancelled = true;
+        final Future<?> f = future;
+        if (state == State.QUEUED && f != null && f.cancel(false)) {
+            finish(State.CANCELLED, null);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (cancelled) {
+            finish(State.CANCELLED, null);
+            return;
+        }
+        state = State.RUNNING;
+        started = System.currentTimeMillis();
+        save();
+        final BrokerPool pool = Preloader.waitForDatabase();
+        if (pool == null) {
+            return;
+        }
+        ExecutorService workers = null;
+        try {
+            final ConcurrentLinkedQueue<XmldbURI> queue = new ConcurrentLinkedQueue<>(listDocuments(pool));
+            log = new FileWriter(logFile, true);
+            workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+                final Thread thread = new Thread(runnable, "stanford-ner-job-" + id);
+                thread.setDaemon(true);
+                return thread;
+            });
+            final List<Future<?>> tasks = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                tasks.add(workers.submit(() -> {
+                    process(pool, queue);
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+            if (!cancelled && isShuttingDown(pool)) {
+                // leave the state as it is, so the remaining documents are processed after a restart
+                LOG.info("Job " + id + " stopped because the database is shutting down");
+                save();
+                return;
+            }
+            finish(cancelled ? State.CANCELLED : State.DONE, failed.get() > 0 ? failed.get() + " documents failed" : null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+            // leave the state as it is, so the job is resumed on restart
+            save();
+        } catch (Exception e) {
+            LOG.warn("Job " + id + " failed: " + e.getMessage(), e);
+            final Throwable cause = e.getCause() != null ? e.getCause() : e;
+            finish(State.FAILED, cause.getMessage());
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            closeLog();
+        }
+    }
+
+    private List<XmldbURI> listDocuments(BrokerPool pool) throws EXistException, XPathException {
+        final List<XmldbURI> documents = new ArrayList<>();
+        final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+        try {
+            final Collection root = broker.getCollection(source);
+            if (root == null) {
+                throw new XPathException("Collection not found: " + source);
+            }
+            listDocuments(broker, root, documents);
+        } catch (PermissionDeniedException e) {
+            throw new XPathException("Permission denied: " + e.getMessage());
+        } finally {
+            pool.release(broker);
+        }
+        total = documents.size() + done.size();
+        save();
+        return documents;
+    }
+
+    private void listDocuments(DBBroker broker, Collection collection, List<XmldbURI> documents)
+            throws PermissionDeniedException {
+        if (AnnotationStore.isInCollection(collection.getURI(), target)) {
+            // do not annotate our own output
+            return;
+        }
+        final List<XmldbURI> found = new ArrayList<>();
+        for (Iterator<DocumentImpl> i = collection.iterator(broker); i.hasNext(); ) {
+            final DocumentImpl doc = i.next();
+            if (doc.getResourceType() == DocumentImpl.XML_FILE && !done.contains(doc.getURI().toString())) {
+                found.add(doc.getURI());
+            }
+        }
+        Collections.sort(found, (a, b) -> a.toString().compareTo(b.toString()));
+        documents.addAll(found);
+        final List<XmldbURI> children = new ArrayList<>();
+        for (Iterator<XmldbURI> i = collection.collectionIterator(broker); i.hasNext(); ) {
+            children.add(i.next());
+        }
+        Collections.sort(children, (a, b) -> a.toString().compareTo(b.toString()));
+        for (XmldbURI child : children) {
+            final Collection sub = broker.getCollection(collection.getURI().append(child));
+            if (sub != null) {
+                listDocuments(broker, sub, documents);
+            }
+        }
+    }
+
+    /**
+     * Process documents from the queue until it is empty, the job is cancelled or the database
+     * shuts down. A broker is only held while a document is processed, so long running jobs do not
+     * occupy the broker pool.
+     */
+    private void process(BrokerPool pool, ConcurrentLinkedQueue<XmldbURI> queue)
+            throws EXistException, XPathException {
+        final LoadedClassifier loaded;
+        DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+        try {
+            loaded = ClassifierRegistry.getInstance().get(broker, classifier);
+        } finally {
+            pool.release(broker);
+        }
+        XmldbURI docUri;
+        while (!cancelled && !isShuttingDown(pool) && (docUri = queue.poll()) != null) {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            try {
+                process(broker, loaded, docUri);
+            } catch (XPathException | PermissionDeniedException | RuntimeException e) {
+                LOG.warn("Job " + id + ": failed to process " + docUri + ": " + e.getMessage());
+                failed.incrementAndGet();
+            } finally {
+                pool.release(broker);
+            }
+            processed.incrementAndGet();
+            checkpoint(docUri);
+        }
+    }
+
+    static boolean isShuttingDown(BrokerPool pool) {
+        return pool.isShuttingDown() || !BrokerPool.isConfigured();
+    }
+
+    private void process(DBBroker broker, LoadedClassifier loaded, XmldbURI docUri)
+            throws XPathException, PermissionDeniedException {
+        final DocumentImpl doc = broker.getXMLResource(docUri);
+        if (doc == null) {
+            // removed in the meantime
+            return;
+        }
+        final EntityIndex.Collector collector = index ? new EntityIndex.Collector() : null;
+        AnnotationStore.storeDocument(broker, loaded, MODE_ENTITIES.equals(mode), blocks, doc,
+                AnnotationStore.getTargetPath(source, target, docUri), collector);
+        if (index) {
+            final EntityIndex entityIndex = EntityIndex.getInstance();
+            entityIndex.configure(broker.getBrokerPool());
+            entityIndex.index(doc, collector, loaded);
+        }
+    }
+
+    private synchronized void checkpoint(XmldbURI docUri) {
+        try {
+            log.write(docUri.toString());
+            log.write('\n');
+            log.flush();
+        } catch (IOException e) {
+            LOG.warn("Job " + id + ": failed to write checkpoint: " + e.getMessage());
+        }
+    }
+
+    private synchronized void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            log = null;
+        }
+    }
+
+    private void finish(State state, String message) {
+        this.state = state;
+        this.message = message;
+        this.finished = System.currentTimeMillis();
+        save();
+    }
+
+    /**
+     * Write the job definition and state to the state file.
+     */
+    synchronized void save() {
+        final Properties props = new Properties();
+        props.setProperty("classifier", classifier);
+        props.setProperty("source", source.toString());
+        props.setProperty("target", target.toString());
+        props.setProperty("mode", mode);
+        if (blocks != null) {
+            props.setProperty("blocks", String.join(",", blocks));
+        }
+        props.setProperty("index", Boolean.toString(index));
+        props.setProperty("parallelism", Integer.toString(parallelism));
+        props.setProperty("state", state.name());
+        if (message != null) {
+            props.setProperty("message", message);
+        }
+        props.setProperty("total", Integer.toString(total));
+        props.setProperty("failed", Integer.toString(failed.get()));
+        props.setProperty("started", Long.toString(started));
+        props.setProperty("finished", Long.toString(finished));
+        try (final OutputStream os = new FileOutputStream(stateFile)) {
+            props.store(os, "stanford-ner job " + id);
+        } catch (IOException e) {
+            LOG.warn("Failed to save state of job " + id + ": " + e.getMessage());
+        }
+    }
+}
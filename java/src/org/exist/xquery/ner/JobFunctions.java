@@ -0,0 +1,192 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.*;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Submit, monitor and cancel background jobs annotating whole collections, see {@link Job}.
+ */
+public class JobFunctions extends BasicFunction {
+
+    private final static SequenceType[] SUBMIT_PARAMS = {
+        new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+            "The path to the serialized classifier to load. Should point to a binary resource " +
+            "stored within the database"),
+        new FunctionParameterSequenceType("source", Type.STRING, Cardinality.EXACTLY_ONE,
+            "The collection containing the documents to annotate. Sub-collections are included."),
+        new FunctionParameterSequenceType("target", Type.STRING, Cardinality.EXACTLY_ONE,
+            "The collection to store the results into. Results are stored using the same paths " +
+            "relative to the target collection as the documents relative to the source collection. " +
+            "Missing collections are created.")
+    };
+
+    public final static FunctionSignature signatures[] = {
+        new FunctionSignature(
+            new QName("submit-job", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Queue a job which annotates every XML document in the source collection and stores " +
+            "the annotated copies into the target collection. Returns immediately with the id of the job. " +
+            "Fails if too many jobs are already waiting. Only available to DBA users.",
+            SUBMIT_PARAMS,
+            new FunctionReturnSequenceType(Type.STRING, Cardinality.EXACTLY_ONE, "The id of the job")
+        ),
+        new FunctionSignature(
+            new QName("submit-job", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Queue a job which annotates every XML document in the source collection and stores " +
+            "the results into the target collection. Returns immediately with the id of the job. " +
+            "Fails if too many jobs are already waiting. Only available to DBA users.",
+            new SequenceType[] {
+                SUBMIT_PARAMS[0], SUBMIT_PARAMS[1], SUBMIT_PARAMS[2],
+                new FunctionParameterSequenceType("options", Type.MAP, Cardinality.EXACTLY_ONE,
+                    "Options map. Supported keys: 'mode': 'markup' (default) stores an annotated copy of each " +
+                    "document, 'entities' stores a list of the entities found in it; 'blocks': a sequence of " +
+                    "element names whose text is classified in one go (see classify-node); 'index': if true(), " +
+                    "the entities are also added to the entity index (see documents-mentioning); 'parallelism': the " +
+                    "number of documents of this job processed at the same time (default: 1).")
+            },
+            new FunctionReturnSequenceType(Type.STRING, Cardinality.EXACTLY_ONE, "The id of the job")
+        ),
+        new FunctionSignature(
+            new QName("job-status", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Report the state and progress of a job, or of all jobs if the id is empty.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("id", Type.STRING, Cardinality.ZERO_OR_ONE,
+                    "The id of the job as returned by submit-job")
+            },
+            new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.ZERO_OR_MORE,
+                "A job element for each job")
+        ),
+        new FunctionSignature(
+            new QName("cancel-job", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Cancel a job. Documents which are currently being processed are completed. Returns false " +
+            "if the job does not exist or has already finished. Only available to DBA users.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("id", Type.STRING, Cardinality.EXACTLY_ONE,
+                    "The id of the job as returned by submit-job")
+            },
+            new FunctionReturnSequenceType(Type.BOOLEAN, Cardinality.EXACTLY_ONE,
+                "true if the job was cancelled")
+        )
+    };
+
+    public JobFunctions(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        if (isCalledAs("job-status")) {
+            final List<Job> jobs;
+            if (args[0].isEmpty()) {
+                jobs = JobManager.getInstance().list();
+            } else {
+                final Job job = JobManager.getInstance().get(args[0].getStringValue());
+                jobs = job == null ? Collections.<Job>emptyList() : Collections.singletonList(job);
+            }
+            return report(jobs);
+        }
+        if (!context.getSubject().hasDbaRole()) {
+            throw new XPathException(this, "Permission denied: only DBA users may manage NER jobs");
+        }
+        if (isCalledAs("cancel-job")) {
+            return BooleanValue.valueOf(JobManager.getInstance().cancel(args[0].getStringValue()));
+        }
+        final String classifier = args[0].getStringValue();
+        final XmldbURI source = XmldbURI.createInternal(args[1].getStringValue());
+        final XmldbURI target = XmldbURI.createInternal(args[2].getStringValue());
+        String mode = Job.MODE_MARKUP;
+        Set<String> blocks = null;
+        boolean index = false;
+        int parallelism = 1;
+        if (args.length == 4) {
+            final AbstractMapType options = (AbstractMapType) args[3].itemAt(0);
+            final Sequence modeOption = Options.get(options, "mode");
+            if (modeOption != null) {
+                mode = modeOption.getStringValue();
+            }
+            blocks = Options.getStrings(options, "blocks");
+            final Sequence indexOption = Options.get(options, "index");
+            index = indexOption != null && indexOption.effectiveBooleanValue();
+            parallelism = Math.max(1, Options.getInt(options, "parallelism", 1));
+        }
+        if (!Job.MODE_MARKUP.equals(mode) && !Job.MODE_ENTITIES.equals(mode)) {
+            throw new XPathException(this, "Unknown job mode: " + mode + ". Expected 'markup' or 'entities'.");
+        }
+        if (AnnotationStore.isInCollection(target, source)) {
+            throw new XPathException(this, "The target collection must not be inside the source collection");
+        }
+        // fail early if the classifier cannot be loaded
+        ClassifierRegistry.getInstance().get(context.getBroker(), classifier);
+        final Job job = JobManager.getInstance().submit(context.getBroker().getBrokerPool(), classifier,
+                source, target, mode, blocks, index, parallelism);
+        return new StringValue(job.getId());
+    }
+
+    private Sequence report(List<Job> jobs) {
+        if (jobs.isEmpty()) {
+            return Sequence.EMPTY_SEQUENCE;
+        }
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            final ValueSequence result = new ValueSequence();
+            for (Job job : jobs) {
+                final AttributesImpl attribs = new AttributesImpl();
+                addAttribute(attribs, "id", job.getId());
+                addAttribute(attribs, "state", job.getState().name().toLowerCase());
+                addAttribute(attribs, "classifier", job.getClassifier());
+                addAttribute(attribs, "source", job.getSource().toString());
+                addAttribute(attribs, "target", job.getTarget().toString());
+                addAttribute(attribs, "mode", job.getMode());
+                if (job.getTotal() >= 0) {
+                    addAttribute(attribs, "total", Integer.toString(job.getTotal()));
+                }
+                addAttribute(attribs, "processed", Integer.toString(job.getProcessed()));
+                addAttribute(attribs, "failed", Integer.toString(job.getFailed()));
+                if (job.getStarted() > 0) {
+                    final long end = job.getFinished() > 0 ? job.getFinished() : System.currentTimeMillis();
+                    addAttribute(attribs, "time", Long.toString(end - job.getStarted()));
+                }
+                if (job.getMessage() != null) {
+                    addAttribute(attribs, "message", job.getMessage());
+                }
+                final int nodeNr = builder.startElement("", "job", "job", attribs);
+                builder.endElement();
+                result.add(builder.getDocument().getNode(nodeNr));
+            }
+            return result;
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    private static void addAttribute(AttributesImpl attribs, String name, String value) {
+        attribs.addAttribute("", name, name, "CDATA", value);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.storage.BrokerPool;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link Job}s on a bounded thread pool. At most "job-threads" jobs run at the same
+ * time and at most "job-queue-size" jobs wait for a thread: if the queue is full, new jobs are
+ * rejected instead of piling up.
+ *
+ * Jobs which were queued or running when the database was stopped are resumed when the module
+ * is initialized again. The state of finished jobs is dropped at that point.
+ */
+public class JobManager {
+
+    private final static Logger LOG = LogManager.getLogger(JobManager.class);
+
+    public final static int DEFAULT_THREADS = 1;
+    public final static int DEFAULT_QUEUE_SIZE = 16;
+
+    private final static JobManager instance = new JobManager();
+
+    public static JobManager getInstance() {
+        return instance;
+    }
+
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicBoolean resumed = new AtomicBoolean(false);
+
+    private volatile int threads = DEFAULT_THREADS;
+    private volatile int queueSize = DEFAULT_QUEUE_SIZE;
+    private ThreadPoolExecutor executor = null;
+
+    private JobManager() {
+    }
+
+    /**
+     * Configure the pool. Has no effect once the first job was submitted.
+     */
+    public void configure(int threads, int queueSize) {
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * Queue a new job. Throws an exception if the queue is full.
+     */
+    public Job submit(BrokerPool pool, String classifier, XmldbURI source, XmldbURI target, String mode,
+                      Set<String> blocks, boolean index, int parallelism) throws XPathException {
+        final File directory = getDirectory(pool);
+        final Job job = new Job(UUID.randomUUID().toString(), classifier, source, target, mode, blocks,
+                index, parallelism, directory);
+        job.save();
+        jobs.put(job.getId(), job);
+        try {
+            schedule(job);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            delete(job, directory);
+            throw new XPathException("NER job queue is full. Try again later.");
+        }
+        return job;
+    }
+
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * All known jobs, in order of submission.
+     */
+    public List<Job> list() {
+        final List<Job> list = new ArrayList<>(jobs.values());
+        Collections.sort(list, Comparator.comparingLong(Job::getSubmitted));
+        return list;
+    }
+
+    /**
+     * Cancel the job with the given id. Returns false if there is no such job or if it
+     * has already finished.
+     */
+    public boolean cancel(String id) {
+        final Job job = jobs.get(id);
+        if (job == null || job.isFinished()) {
+            return false;
+        }
+        job.cancel();
+        return true;
+    }
+
+    /**
+     * Resume the jobs which did not finish before the database was stopped. Runs on a background
+     * thread once the database is available. Only the first call has an effect.
+     */
+    public void resume() {
+        if (!resumed.compareAndSet(false, true)) {
+            return;
+        }
+        final Thread thread = new Thread(() -> {
+            final BrokerPool pool = Preloader.waitForDatabase();
+            if (pool != null) {
+                resume(pool);
+            }
+        }, "stanford-ner-job-resume");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void resume(BrokerPool pool) {
+        final File directory = getDirectory(pool);
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(".properties"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final Job job = Job.restore(file);
+            if (job == null) {
+                continue;
+            }
+            if (job.isFinished()) {
+                delete(job, directory);
+                continue;
+            }
+            LOG.info("Resuming NER job " + job.getId() + " on " + job.getSource());
+            jobs.put(job.getId(), job);
+            try {
+                schedule(job);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("NER job queue is full: cannot resume job " + job.getId());
+                jobs.remove(job.getId());
+            }
+        }
+    }
+
+    private void schedule(Job job) {
+        job.setFuture(getExecutor().submit(job));
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), runnable -> {
+                        final Thread thread = new Thread(runnable, "stanford-ner-jobs-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    });
+        }
+        return executor;
+    }
+
+    private static File getDirectory(BrokerPool pool) {
+        final File directory = StanfordNERModule.getDataDirectory(pool, "jobs");
+        if (directory == null) {
+            throw new IllegalStateException("eXist data directory is not configured");
+        }
+        directory.mkdirs();
+        return directory;
+    }
+
+    private static void delete(Job job, File directory) {
+        new File(directory, job.getId() + ".properties").delete();
+        new File(directory, job.getId() + ".log").delete();
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.xquery.Expression;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.XQueryWatchDog;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the resources a single XQuery call may use, so that large inputs or many concurrent
+ * calls do not starve the rest of the database:
+ *
+ * <ul>
+ *     <li>the number of characters passed to the classifier in one call,</li>
+ *     <li>the number of calls classifying at the same time: further calls wait in a queue of
+ *     limited length and are rejected at once if the queue is full,</li>
+ *     <li>the time a call may take, including the time spent waiting in the queue.</li>
+ * </ul>
+ *
+ * A call registers itself with {@link #enter} and is visible to the classification code running
+ * on its behalf through a thread local, which is carried over to worker threads by {@link #wrap}.
+ * The limits are checked cooperatively: before every text is classified and between the sentences
+ * of a text. A call terminated by the XQuery watchdog is stopped at the same points.
+ *
+ * Background jobs and triggers do not enter, so they are not limited.
+ */
+public class Limits {
+
+    /**
+     * Thrown from code which cannot throw an {@link XPathException} when a limit is exceeded.
+     * Functions calling {@link #enter} convert it back with {@link #getError()}.
+     */
+    public static class LimitExceededException extends RuntimeException {
+
+        private final XPathException error;
+
+        LimitExceededException(XPathException error) {
+            super(error.getMessage(), error);
+            this.error = error;
+        }
+
+        public XPathException getError() {
+            return error;
+        }
+    }
+
+    public final static int DEFAULT_MAX_QUEUED = 16;
+
+    /** interval in milliseconds in which waiting calls check for termination */
+    private final static long POLL_INTERVAL = 100;
+
+    private final static ThreadLocal<Call> current = new ThreadLocal<>();
+
+    private static volatile long maxInputLength = 0;
+    private static volatile long timeout = 0;
+    private static volatile int maxConcurrent = 0;
+    private static volatile int maxQueued = DEFAULT_MAX_QUEUED;
+    private static volatile Semaphore permits = null;
+
+    private final static AtomicInteger queued = new AtomicInteger();
+    private final static AtomicLong rejected = new AtomicLong();
+    private final static AtomicLong timeouts = new AtomicLong();
+    private final static AtomicLong tooLarge = new AtomicLong();
+
+    /**
+     * Set the maximum number of characters classified in one call. 0 means no limit.
+     */
+    public static void setMaxInputLength(long length) {
+        maxInputLength = Math.max(0, length);
+    }
+
+    /**
+     * Set the maximum time in milliseconds a call may take. 0 means no limit apart from the
+     * XQuery watchdog.
+     */
+    public static void setTimeout(long millis) {
+        timeout = Math.max(0, millis);
+    }
+
+    /**
+     * Set the number of calls classifying at the same time and the number of calls waiting for
+     * their turn. A maximum of 0 disables the limit. The module is instantiated for every query,
+     * so the gate is only replaced if the maximum changes: calls already running hold permits of
+     * the current one.
+     */
+    public static synchronized void setMaxConcurrent(int concurrent, int queueSize) {
+        maxQueued = Math.max(0, queueSize);
+        concurrent = Math.max(0, concurrent);
+        if (concurrent == maxConcurrent) {
+            return;
+        }
+        maxConcurrent = concurrent;
+        permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+    }
+
+    public static long getMaxInputLength() {
+        return maxInputLength;
+    }
+
+    public static long getTimeout() {
+        return timeout;
+    }
+
+    public static int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public static int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public static int getActive() {
+        final Semaphore semaphore = permits;
+        return semaphore == null ? 0 : maxConcurrent - semaphore.availablePermits();
+    }
+
+    public static int getQueued() {
+        return queued.get();
+    }
+
+    public static long getRejected() {
+        return rejected.get();
+    }
+
+    public static long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public static long getTooLarge() {
+        return tooLarge.get();
+    }
+
+    /**
+     * Admit a call of the given function, waiting if the maximum number of concurrent calls is
+     * reached. The returned call must be released with {@link Call#exit()}. Calls nested in
+     * another call, e.g. from a callback function, share its admission.
+     *
+     * @throws XPathException if the queue is full, the timeout expired while waiting or the
+     * query was terminated
+     */
+    public static Call enter(XQueryContext context, Expression expression) throws XPathException {
+        final Call outer = current.get();
+        if (outer != null) {
+            return new Call(outer);
+        }
+        final Call call = new Call(context.getWatchDog(), expression, permits);
+        if (call.permits != null && !call.permits.tryAcquire()) {
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                rejected.incrementAndGet();
+                throw new XPathException(expression, "Too many concurrent NER calls: " + maxConcurrent +
+                        " running, " + maxQueued + " waiting. Try again later.");
+            }
+            try {
+                while (!call.permits.tryAcquire(POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    call.checkTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XPathException(expression, "Interrupted while waiting for other NER calls to complete");
+            } finally {
+                queued.decrementAndGet();
+            }
+        }
+        call.acquired = call.permits != null;
+        current.set(call);
+        return call;
+    }
+
+    /**
+     * Account for a text about to be classified by the current call.
+     *
+     * @throws LimitExceededException if the call exceeds the input limit or one of the checks in
+     * {@link #check()} fails
+     */
+    public static void input(int length) {
+        final Call call = current.get();
+        if (call != null) {
+            call.input(length);
+        }
+    }
+
+    /**
+     * Check the timeout and the watchdog of the current call, if any.
+     *
+     * @throws LimitExceededException if the call should stop
+     */
+    public static void check() {
+        final Call call = current.get();
+        if (call != null) {
+            try {
+                call.checkTime();
+            } catch (XPathException e) {
+                throw new LimitExceededException(e);
+            }
+        }
+    }
+
+    /**
+     * Make the current call, if any, visible to a task run on a worker thread.
+     */
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        final Call call = current.get();
+        if (call == null) {
+            return task;
+        }
+        return () -> {
+            final Call previous = current.get();
+            current.set(call);
+            try {
+                return task.call();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+
+    /**
+     * The resources used by one call of an XQuery function.
+     */
+    public static class Call {
+
+        private final Call outer;
+        private final XQueryWatchDog watchDog;
+        private final Expression expression;
+        private final Thread owner;
+        private final Semaphore permits;
+        private final long timeout;
+        private final long deadline;
+        private final AtomicLong length = new AtomicLong();
+        private boolean acquired = false;
+
+        private Call(XQueryWatchDog watchDog, Expression expression, Semaphore permits) {
+            this.outer = null;
+            this.watchDog = watchDog;
+            this.expression = expression;
+            this.owner = Thread.currentThread();
+            this.permits = permits;
+            this.timeout = Limits.timeout;
+            this.deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        }
+
+        private Call(Call outer) {
+            this.outer = outer;
+            this.watchDog = null;
+            this.expression = null;
+            this.owner = null;
+            this.permits = null;
+            this.timeout = 0;
+            this.deadline = 0;
+        }
+
+        /**
+         * Release the admission of the call.
+         */
+        public void exit() {
+            if (outer != null) {
+                return;
+            }
+            current.remove();
+            if (acquired) {
+                permits.release();
+            }
+        }
+
+        private void input(int chars) {
+            if (outer != null) {
+                outer.input(chars);
+                return;
+            }
+            final long max = maxInputLength;
+            final long total = length.addAndGet(chars);
+            if (max > 0 && total > max) {
+                tooLarge.incrementAndGet();
+                throw new LimitExceededException(new XPathException(expression, "Input of NER call exceeds the " +
+                        "limit of " + max + " characters"));
+            }
+            try {
+                checkTime();
+            } catch (XPathException e) {
+                throw new LimitExceededException(e);
+            }
+        }
+
+        private void checkTime() throws XPathException {
+            if (deadline > 0 && System.currentTimeMillis() > deadline) {
+                timeouts.incrementAndGet();
+                throw new XPathException(expression, "NER call exceeded the time limit of " + timeout + "ms");
+            }
+            if (Thread.currentThread() == owner) {
+                watchDog.proceed(expression);
+            } else if (watchDog.isTerminating()) {
+                throw new XPathException(expression, "NER call was terminated");
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import edu.stanford.nlp.ie.AbstractSequenceClassifier;
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A classifier held by the {@link ClassifierRegistry}, together with the
+ * information needed to decide if it is still current.
+ *
+ * Instances are shared between threads: the Stanford CRF classifier can be used for
+ * concurrent classification once it has been fully initialized (see
+ * {@link ClassifierRegistry}).
+ */
+public class LoadedClassifier {
+
+    private final String path;
+    private final long lastModified;
+    private final File dataDir;
+    private final AbstractSequenceClassifier<CoreLabel> classifier;
+    private final long estimatedSize;
+    private final long loadTime;
+
+    private final AtomicLong hits = new AtomicLong();
+    private volatile long lastAccess;
+
+    public LoadedClassifier(String path, long lastModified, File classifierFile,
+                            AbstractSequenceClassifier<CoreLabel> classifier, long loadTime) {
+        this.path = path;
+        this.lastModified = lastModified;
+        this.dataDir = classifierFile.getParentFile();
+        this.classifier = classifier;
+        this.loadTime = loadTime;
+        this.estimatedSize = estimateSize(classifier, classifierFile);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * The directory containing the classifier file. Additional resources like the
+     * Chinese segmenter data are expected here.
+     */
+    public File getDataDir() {
+        return dataDir;
+    }
+
+    public AbstractSequenceClassifier<CoreLabel> getClassifier() {
+        return classifier;
+    }
+
+    /**
+     * Classify the text, using a cached result if available. The text is accounted to the
+     * current call (see {@link Limits}).
+     */
+    public List<List<CoreLabel>> classify(String text) {
+        Limits.input(text.length());
+        return ResultCache.getInstance().classify(this, text);
+    }
+
+    /**
+     * Rough estimate of the heap occupied by the model in bytes.
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    /**
+     * Time in milliseconds it took to deserialize the model.
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Logical time of the last access, used to find the least recently used model.
+     */
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    void hit(long tick) {
+        hits.incrementAndGet();
+        lastAccess = tick;
+    }
+
+    void touch(long tick) {
+        lastAccess = tick;
+    }
+
+    /**
+     * The weights dominate the size of a CRF model. The feature index (mostly short strings)
+     * is of a similar order of magnitude, so we count the weights twice. For other classifier
+     * types we fall back to a multiple of the compressed file size.
+     */
+    private static long estimateSize(AbstractSequenceClassifier<CoreLabel> classifier, File file) {
+        if (classifier instanceof CRFClassifier) {
+            return ((CRFClassifier) classifier).getNumWeights() * 8L * 2;
+        }
+        return file.length() * 4;
+    }
+}
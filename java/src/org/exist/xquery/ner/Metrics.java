@@ -0,0 +1,203 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the module. Recording a value only involves a few
+ * uncontended atomic additions, so metrics are always collected.
+ *
+ * Timers are summed over all threads: with parallel classification, the inference time of a
+ * call may exceed its wall clock time.
+ */
+public class Metrics {
+
+    private final static Metrics instance = new Metrics();
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    public final static String INFERENCE = "inference";
+    public final static String MARKUP = "markup";
+    public final static String CALLBACK = "callback";
+    public final static String SEGMENTATION = "segmentation";
+
+    private final ConcurrentHashMap<String, Histogram> functions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder texts = new LongAdder();
+
+    private Metrics() {
+        for (String name : new String[] { INFERENCE, MARKUP, CALLBACK, SEGMENTATION }) {
+            timers.put(name, new Timer());
+        }
+    }
+
+    /**
+     * Record a call to the XQuery function with the given name, which started at the given
+     * time (as returned by {@link System#nanoTime()}).
+     */
+    public void call(String function, long start) {
+        Histogram histogram = functions.get(function);
+        if (histogram == null) {
+            histogram = functions.computeIfAbsent(function, k -> new Histogram());
+        }
+        histogram.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Record the time spent in one of the phases {@link #INFERENCE}, {@link #MARKUP},
+     * {@link #CALLBACK} or {@link #SEGMENTATION}, which started at the given time.
+     */
+    public void time(String timer, long start) {
+        timers.get(timer).add(System.nanoTime() - start);
+    }
+
+    /**
+     * As {@link #time(String, long)}, but without the given number of nanoseconds spent in a
+     * nested phase, so the nested time is not counted twice.
+     */
+    public void time(String timer, long start, long excluded) {
+        timers.get(timer).add(System.nanoTime() - start - excluded);
+    }
+
+    /**
+     * Record a text run through the classifier.
+     */
+    public void classified(int tokenCount) {
+        texts.increment();
+        tokens.add(tokenCount);
+    }
+
+    public long getTokens() {
+        return tokens.sum();
+    }
+
+    public long getTexts() {
+        return texts.sum();
+    }
+
+    /**
+     * Statistics for each XQuery function called so far, sorted by name.
+     */
+    public Map<String, Histogram> getFunctions() {
+        return new TreeMap<>(functions);
+    }
+
+    public Map<String, Timer> getTimers() {
+        return new TreeMap<>(timers);
+    }
+
+    public static class Timer {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        void add(long elapsed) {
+            count.increment();
+            nanos.add(elapsed);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Total time in milliseconds.
+         */
+        public long getTotal() {
+            return nanos.sum() / 1000000;
+        }
+    }
+
+    /**
+     * Latency histogram with power-of-two buckets in microseconds. Percentiles are reported as the
+     * upper bound of the bucket containing them, so they may be overestimated by up to a factor of 2.
+     */
+    public static class Histogram {
+
+        private final static int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private volatile long max = 0;
+
+        void record(long elapsed) {
+            final long micros = elapsed / 1000;
+            final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            nanos.add(elapsed);
+            if (elapsed > max) {
+                // races may lose an update, which is acceptable for a statistic
+                max = elapsed;
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Mean latency in microseconds.
+         */
+        public long getMean() {
+            final long n = count.sum();
+            return n == 0 ? 0 : nanos.sum() / n / 1000;
+        }
+
+        /**
+         * Maximum latency in microseconds.
+         */
+        public long getMax() {
+            return max / 1000;
+        }
+
+        /**
+         * Approximate latency in microseconds below which the given fraction of calls completed.
+         */
+        public long getPercentile(double fraction) {
+            long total = 0;
+            final long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(1L << i, getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+}
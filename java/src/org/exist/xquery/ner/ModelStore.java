@@ -0,0 +1,256 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.ling.CoreLabel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.storage.BrokerPool;
+import org.exist.xquery.XPathException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads classifiers and keeps compiled copies of them. Classifiers are usually uploaded as
+ * gzip compressed, serialized Java objects; decompressing accounts for a large part of the
+ * load time. A compiled copy is the same model serialized without compression into a file
+ * below the eXist data directory. It is read through a memory mapped file, so the model
+ * is deserialized directly from the operating system's page cache, which also keeps it
+ * between reloads.
+ *
+ * Compiled copies are named after the path and modification time of the classifier resource,
+ * so a copy is never used for a different version of the classifier.
+ */
+public class ModelStore {
+
+    private final static Logger LOG = LogManager.getLogger(ModelStore.class);
+
+    private final static ModelStore instance = new ModelStore();
+
+    public static ModelStore getInstance() {
+        return instance;
+    }
+
+    private final static int BUFFER_SIZE = 65536;
+
+    private final static String SUFFIX = ".ser";
+
+    private volatile File directory = null;
+    private volatile boolean autoCompile = false;
+
+    private ModelStore() {
+    }
+
+    /**
+     * Locate the directory for compiled copies below the data directory of the database.
+     */
+    public void configure(BrokerPool pool) {
+        if (directory == null) {
+            directory = StanfordNERModule.getDataDirectory(pool, "models");
+        }
+    }
+
+    /**
+     * If set, every classifier is compiled in the background after it was loaded from its
+     * compressed form for the first time.
+     */
+    public void setAutoCompile(boolean autoCompile) {
+        this.autoCompile = autoCompile;
+    }
+
+    /**
+     * Load the classifier from the given resource, using a compiled copy if it exists.
+     */
+    public CRFClassifier<CoreLabel> load(String path, long lastModified, File classifierFile)
+            throws IOException, ClassNotFoundException {
+        final File compiled = getFile(path, lastModified);
+        if (compiled != null && compiled.exists()) {
+            try {
+                return loadMapped(compiled);
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                LOG.warn("Failed to load compiled classifier " + compiled.getAbsolutePath() + ", falling back to " +
+                        path + ": " + e.getMessage());
+                compiled.delete();
+            }
+        }
+        try (final ObjectInputStream is = openCompressed(classifierFile)) {
+            final CRFClassifier<CoreLabel> classifier = CRFClassifier.getClassifier(is);
+            if (autoCompile && compiled != null) {
+                WorkerPool.getExecutor().submit(() -> {
+                    try {
+                        compile(path, lastModified, classifier);
+                    } catch (XPathException e) {
+                        LOG.warn(e.getMessage());
+                    }
+                });
+            }
+            return classifier;
+        }
+    }
+
+    /**
+     * Write a compiled copy of the classifier loaded from the given resource and remove copies of
+     * older versions. Returns the size of the compiled copy in bytes.
+     */
+    public long compile(String path, long lastModified, CRFClassifier<CoreLabel> classifier) throws XPathException {
+        final File file = getFile(path, lastModified);
+        if (file == null) {
+            throw new XPathException("Data directory unknown: cannot compile classifier " + path);
+        }
+        final File dir = file.getParentFile();
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("unable to create directory " + dir.getAbsolutePath());
+            }
+            final File temp = File.createTempFile("model", ".tmp", dir);
+            try {
+                try (final ObjectOutputStream os = new ObjectOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE))) {
+                    classifier.serializeClassifier(os);
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            throw new XPathException("Error while compiling classifier " + path + ": " + e.getMessage());
+        }
+        removeOutdated(path, lastModified);
+        LOG.info("Compiled classifier " + path + " to " + file.getAbsolutePath());
+        return file.length();
+    }
+
+    /**
+     * Delete all compiled copies of the classifier, e.g. because it was removed.
+     */
+    public void remove(String path) {
+        removeOutdated(path, -1);
+    }
+
+    private void removeOutdated(String path, long lastModified) {
+        final File dir = directory;
+        if (dir == null) {
+            return;
+        }
+        final String prefix = ResultCache.digest(path) + '-';
+        final String current = lastModified < 0 ? null : prefix + lastModified + SUFFIX;
+        final File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && !name.equals(current));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getFile(String path, long lastModified) {
+        final File dir = directory;
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, ResultCache.digest(path) + '-' + lastModified + SUFFIX);
+    }
+
+    private static CRFClassifier<CoreLabel> loadMapped(File file) throws IOException, ClassNotFoundException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final InputStream is;
+            if (size > Integer.MAX_VALUE) {
+                // too large for a single mapping
+                is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            } else {
+                is = new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+            try (final ObjectInputStream ois = new ObjectInputStream(is)) {
+                return CRFClassifier.getClassifier(ois);
+            }
+        }
+    }
+
+    /**
+     * The stock loader does not buffer the decompressed stream, which slows down deserialization.
+     */
+    static ObjectInputStream openCompressed(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            if (file.getName().endsWith(".gz")) {
+                is = new GZIPInputStream(is, BUFFER_SIZE);
+            }
+            return new ObjectInputStream(new BufferedInputStream(is, BUFFER_SIZE));
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
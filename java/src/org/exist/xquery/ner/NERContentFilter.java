@@ -0,0 +1,269 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.xquery.XPathException;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SAX filter which marks up named entities in the text passing through it and forwards everything
+ * to the downstream content handler. Unlike the receivers in {@link Classify}, it does not build
+ * an in-memory tree: only the text of the current text node or block element is held in memory.
+ *
+ * Document start and end events are not forwarded, so the filter can be used to process any node.
+ * The caller is responsible for starting and ending the output document.
+ */
+public class NERContentFilter extends XMLFilterImpl implements LexicalHandler {
+
+    private final LoadedClassifier classifier;
+    private final ChineseSegmenter segmenter;
+    private final Set<String> blocks;
+
+    private TextBlock block = null;
+    private int blockLevel = 0;
+
+    private EntityIndex.Collector collector = null;
+
+    /** reused for passing text to the content handler, which must not keep a reference to it */
+    private char[] buffer = new char[256];
+
+    private final EntityWriter writer = new EntityWriter() {
+
+        /** entity elements do not nest, so we only need to remember the last one */
+        private String name = null;
+
+        @Override
+        public void startEntity(String tag) throws SAXException {
+            name = EntitySpan.getElementName(tag);
+            getContentHandler().startElement("", name, name, new AttributesImpl());
+        }
+
+        @Override
+        public void endEntity() throws SAXException {
+            getContentHandler().endElement("", name, name);
+        }
+
+        @Override
+        public void text(CharSequence text) throws SAXException {
+            final int length = text.length();
+            if (length > 0) {
+                if (buffer.length < length) {
+                    buffer = new char[Math.max(length, buffer.length * 2)];
+                }
+                for (int i = 0; i < length; i++) {
+                    buffer[i] = text.charAt(i);
+                }
+                getContentHandler().characters(buffer, 0, length);
+            }
+        }
+    };
+
+    /**
+     * @param classifier the classifier to use
+     * @param segmenter segmenter to apply to text before classifying it, or null
+     * @param blocks names of elements whose text should be classified as a whole, or null
+     * @param handler the content handler to forward events to
+     */
+    public NERContentFilter(LoadedClassifier classifier, ChineseSegmenter segmenter,
+                            Set<String> blocks, ContentHandler handler) {
+        this.classifier = classifier;
+        this.segmenter = segmenter;
+        this.blocks = blocks;
+        setContentHandler(handler);
+    }
+
+    /**
+     * Report the entities found to the given collector, see {@link EntityIndex.Collector}.
+     */
+    public void setCollector(EntityIndex.Collector collector) {
+        this.collector = collector;
+    }
+
+    /**
+     * Classify and forward any pending block content.
+     */
+    public void flush() throws SAXException {
+        if (block == null) {
+            return;
+        }
+        final TextBlock current = block;
+        block = null;
+        write(current);
+    }
+
+    private void write(TextBlock textBlock) throws SAXException {
+        final String text = textBlock.getText();
+        if (text.trim().isEmpty()) {
+            if (collector != null) {
+                collector.skip();
+            }
+            textBlock.replay(writer);
+        } else {
+            final List<EntitySpan> spans = EntitySpan.find(classifier.classify(text));
+            if (collector != null) {
+                collector.found(spans, text);
+            }
+            textBlock.write(spans, writer);
+        }
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        // handled by the caller
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        flush();
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (collector != null) {
+            collector.text(block == null ? 0 : block.length());
+        }
+        if (block != null && segmenter == null) {
+            block.addText(ch, start, length);
+            return;
+        }
+        String s = new String(ch, start, length);
+        if (segmenter != null) {
+            try {
+                s = segmenter.segment(s);
+            } catch (XPathException e) {
+                throw new SAXException(e.getMessage(), e);
+            }
+        }
+        if (block != null) {
+            block.addText(s);
+        } else {
+            final TextBlock single = new TextBlock();
+            single.addText(s);
+            write(single);
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if (blocks != null && blocks.contains(localName)) {
+            flush();
+            super.startElement(uri, localName, qName, atts);
+            blockLevel++;
+            block = new TextBlock();
+        } else if (block != null) {
+            final Attributes copy = new AttributesImpl(atts);
+            block.addStartElement(() -> super.startElement(uri, localName, qName, copy));
+        } else {
+            super.startElement(uri, localName, qName, atts);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (blockLevel > 0 && blocks.contains(localName)) {
+            flush();
+            super.endElement(uri, localName, qName);
+            blockLevel--;
+            block = blockLevel > 0 ? new TextBlock() : null;
+        } else if (block != null) {
+            block.addEndElement(() -> super.endElement(uri, localName, qName));
+        } else {
+            super.endElement(uri, localName, qName);
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        if (block != null) {
+            block.addEvent(() -> super.startPrefixMapping(prefix, uri));
+        } else {
+            super.startPrefixMapping(prefix, uri);
+        }
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        if (block != null) {
+            block.addEvent(() -> super.endPrefixMapping(prefix));
+        } else {
+            super.endPrefixMapping(prefix);
+        }
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        if (block != null) {
+            block.addEvent(() -> super.processingInstruction(target, data));
+        } else {
+            super.processingInstruction(target, data);
+        }
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        final LexicalHandler lexicalHandler = getLexicalHandler();
+        if (lexicalHandler == null) {
+            return;
+        }
+        if (block != null) {
+            final char[] copy = Arrays.copyOfRange(ch, start, start + length);
+            block.addEvent(() -> lexicalHandler.comment(copy, 0, copy.length));
+        } else {
+            lexicalHandler.comment(ch, start, length);
+        }
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+    }
+
+    @Override
+    public void endDTD() throws SAXException {
+    }
+
+    @Override
+    public void startEntity(String name) throws SAXException {
+    }
+
+    @Override
+    public void endEntity(String name) throws SAXException {
+    }
+
+    @Override
+    public void startCDATA() throws SAXException {
+    }
+
+    @Override
+    public void endCDATA() throws SAXException {
+    }
+
+    private LexicalHandler getLexicalHandler() {
+        final ContentHandler handler = getContentHandler();
+        return handler instanceof LexicalHandler ? (LexicalHandler) handler : null;
+    }
+}
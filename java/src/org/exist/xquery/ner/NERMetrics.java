@@ -0,0 +1,130 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes the module's metrics to the platform MBean server as
+ * <code>org.exist.xquery.ner:type=Metrics</code>.
+ */
+public class NERMetrics implements NERMetricsMXBean {
+
+    private final static Logger LOG = LogManager.getLogger(NERMetrics.class);
+
+    public final static String OBJECT_NAME = "org.exist.xquery.ner:type=Metrics";
+
+    private final static AtomicBoolean registered = new AtomicBoolean();
+
+    /**
+     * Register the MBean, unless this was done before.
+     */
+    public static void register() {
+        if (!registered.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new NERMetrics(), name);
+            }
+        } catch (JMException e) {
+            LOG.warn("Failed to register metrics MBean: " + e.getMessage(), e);
+        }
+    }
+
+    private final Metrics metrics = Metrics.getInstance();
+
+    @Override
+    public long getTokens() {
+        return metrics.getTokens();
+    }
+
+    @Override
+    public long getTexts() {
+        return metrics.getTexts();
+    }
+
+    @Override
+    public long getInferenceTime() {
+        return metrics.getTimers().get(Metrics.INFERENCE).getTotal();
+    }
+
+    @Override
+    public long getMarkupTime() {
+        return metrics.getTimers().get(Metrics.MARKUP).getTotal();
+    }
+
+    @Override
+    public long getCallbackTime() {
+        return metrics.getTimers().get(Metrics.CALLBACK).getTotal();
+    }
+
+    @Override
+    public long getSegmentationTime() {
+        return metrics.getTimers().get(Metrics.SEGMENTATION).getTotal();
+    }
+
+    @Override
+    public long getLoadTime() {
+        return ClassifierRegistry.getInstance().getTotalLoadTime();
+    }
+
+    @Override
+    public int getLoadedModels() {
+        return ClassifierRegistry.getInstance().getLoaded().size();
+    }
+
+    @Override
+    public long getModelMemory() {
+        return ClassifierRegistry.getInstance().getUsed();
+    }
+
+    @Override
+    public long getModelMemoryBudget() {
+        return ClassifierRegistry.getInstance().getBudget();
+    }
+
+    @Override
+    public double getResultCacheHitRate() {
+        return ResultCache.getInstance().getHitRate();
+    }
+
+    @Override
+    public List<FunctionStatistics> getFunctions() {
+        final List<FunctionStatistics> list = new ArrayList<>();
+        for (Map.Entry<String, Metrics.Histogram> entry : metrics.getFunctions().entrySet()) {
+            final Metrics.Histogram h = entry.getValue();
+            list.add(new FunctionStatistics(entry.getKey(), h.getCount(), h.getMean(), h.getPercentile(0.5),
+                    h.getPercentile(0.9), h.getPercentile(0.99), h.getMax()));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import java.util.List;
+
+/**
+ * JMX view of the module's {@link Metrics}, the {@link ClassifierRegistry} and the {@link ResultCache}.
+ * Times are given in milliseconds, latencies in microseconds.
+ */
+public interface NERMetricsMXBean {
+
+    long getTokens();
+
+    long getTexts();
+
+    long getInferenceTime();
+
+    long getMarkupTime();
+
+    long getCallbackTime();
+
+    long getSegmentationTime();
+
+    long getLoadTime();
+
+    int getLoadedModels();
+
+    long getModelMemory();
+
+    long getModelMemoryBudget();
+
+    double getResultCacheHitRate();
+
+    List<FunctionStatistics> getFunctions();
+
+    /**
+     * Call statistics of a single XQuery function.
+     */
+    class FunctionStatistics {
+
+        private final String name;
+        private final long calls;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        @java.beans.ConstructorProperties({ "name", "calls", "mean", "p50", "p90", "p99", "max" })
+        public FunctionStatistics(String name, long calls, long mean, long p50, long p90, long p99, long max) {
+            this.name = name;
+            this.calls = calls;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
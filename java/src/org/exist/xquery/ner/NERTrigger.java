@@ -0,0 +1,166 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.collections.Collection;
+import org.exist.collections.triggers.FilteringTrigger;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collection trigger which keeps annotated copies of the documents in a collection up to date.
+ * Configure it in the collection.xconf of the source collection:
+ *
+ * <pre>
+ * &lt;triggers&gt;
+ *     &lt;trigger class="org.exist.xquery.ner.NERTrigger"&gt;
+ *         &lt;parameter name="classifier" value="/db/apps/stanford-ner/resources/classifiers/english.all.3class.distsim.crf.ser.gz"/&gt;
+ *         &lt;parameter name="target" value="/db/annotated"/&gt;
+ *     &lt;/trigger&gt;
+ * &lt;/triggers&gt;
+ * </pre>
+ *
+ * Optional parameters are "mode" ("markup" or "entities", as for ner:submit-job), "blocks" (a
+ * comma-separated list of element names), "index" ("yes" to maintain the {@link EntityIndex})
+ * and "delay" (milliseconds to wait for further changes before a document is annotated,
+ * default 2000). The work is done by the {@link IncrementalAnnotator}.
+ */
+public class NERTrigger extends FilteringTrigger {
+
+    public final static long DEFAULT_DELAY = 2000;
+
+    private IncrementalAnnotator.Target target;
+
+    @Override
+    public void configure(DBBroker broker, Collection parent, Map<String, List<?>> parameters)
+            throws TriggerException {
+        super.configure(broker, parent, parameters);
+        final String classifier = getParameter(parameters, "classifier");
+        final String targetPath = getParameter(parameters, "target");
+        if (classifier == null || targetPath == null) {
+            throw new TriggerException("NERTrigger requires the parameters 'classifier' and 'target'");
+        }
+        final String mode = getParameter(parameters, "mode");
+        if (mode != null && !Job.MODE_MARKUP.equals(mode) && !Job.MODE_ENTITIES.equals(mode)) {
+            throw new TriggerException("NERTrigger: unknown mode " + mode + ". Expected 'markup' or 'entities'.");
+        }
+        final String blocks = getParameter(parameters, "blocks");
+        final String delay = getParameter(parameters, "delay");
+        long delayMillis = DEFAULT_DELAY;
+        if (delay != null) {
+            try {
+                delayMillis = Long.parseLong(delay.trim());
+            } catch (NumberFormatException e) {
+                throw new TriggerException("NERTrigger: invalid delay " + delay + ". Expected milliseconds.");
+            }
+        }
+        final XmldbURI source = parent.getURI();
+        final XmldbURI targetUri = XmldbURI.createInternal(targetPath);
+        if (AnnotationStore.isInCollection(targetUri, source)) {
+            throw new TriggerException("NERTrigger: the target collection must not be inside the source collection");
+        }
+        target = new IncrementalAnnotator.Target(classifier, source, targetUri, Job.MODE_ENTITIES.equals(mode),
+                blocks == null ? null : new HashSet<>(Arrays.asList(blocks.trim().split("\\s*,\\s*"))),
+                "yes".equals(getParameter(parameters, "index")),
+                delayMillis);
+        IncrementalAnnotator.getInstance().resume();
+    }
+
+    private static String getParameter(Map<String, List<?>> parameters, String name) {
+        final List<?> values = parameters == null ? null : parameters.get(name);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        return values.get(0).toString();
+    }
+
+    @Override
+    public void beforeCreateDocument(DBBroker broker, Txn txn, XmldbURI uri) throws TriggerException {
+    }
+
+    @Override
+    public void afterCreateDocument(DBBroker broker, Txn txn, DocumentImpl document) throws TriggerException {
+        changed(broker, document);
+    }
+
+    @Override
+    public void beforeUpdateDocument(DBBroker broker, Txn txn, DocumentImpl document) throws TriggerException {
+    }
+
+    @Override
+    public void afterUpdateDocument(DBBroker broker, Txn txn, DocumentImpl document) throws TriggerException {
+        changed(broker, document);
+    }
+
+    @Override
+    public void beforeUpdateDocumentMetadata(DBBroker broker, Txn txn, DocumentImpl document)
+            throws TriggerException {
+    }
+
+    @Override
+    public void afterUpdateDocumentMetadata(DBBroker broker, Txn txn, DocumentImpl document)
+            throws TriggerException {
+    }
+
+    @Override
+    public void beforeCopyDocument(DBBroker broker, Txn txn, DocumentImpl document, XmldbURI newUri)
+            throws TriggerException {
+    }
+
+    @Override
+    public void afterCopyDocument(DBBroker broker, Txn txn, DocumentImpl document, XmldbURI oldUri)
+            throws TriggerException {
+        changed(broker, document);
+    }
+
+    @Override
+    public void beforeMoveDocument(DBBroker broker, Txn txn, DocumentImpl document, XmldbURI newUri)
+            throws TriggerException {
+    }
+
+    @Override
+    public void afterMoveDocument(DBBroker broker, Txn txn, DocumentImpl document, XmldbURI oldUri)
+            throws TriggerException {
+        IncrementalAnnotator.getInstance().removed(broker.getBrokerPool(), target, oldUri);
+        changed(broker, document);
+    }
+
+    @Override
+    public void beforeDeleteDocument(DBBroker broker, Txn txn, DocumentImpl document) throws TriggerException {
+    }
+
+    @Override
+    public void afterDeleteDocument(DBBroker broker, Txn txn, XmldbURI uri) throws TriggerException {
+        IncrementalAnnotator.getInstance().removed(broker.getBrokerPool(), target, uri);
+    }
+
+    private void changed(DBBroker broker, DocumentImpl document) {
+        if (document.getResourceType() == DocumentImpl.XML_FILE) {
+            IncrementalAnnotator.getInstance().changed(broker.getBrokerPool(), target, document.getURI());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.xquery.XPathException;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.StringValue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Helper methods to read the options map accepted by some of the functions.
+ */
+class Options {
+
+    private Options() {
+    }
+
+    static int getInt(AbstractMapType options, String key, int defaultValue) throws XPathException {
+        final Sequence value = get(options, key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.getStringValue().trim());
+        } catch (NumberFormatException e) {
+            throw new XPathException("Option " + key + " should be an integer, got: " + value.getStringValue());
+        }
+    }
+
+    /**
+     * Returns the string values of the option as a set, or null if the option is not set.
+     */
+    static Set<String> getStrings(AbstractMapType options, String key) throws XPathException {
+        final Sequence value = get(options, key);
+        if (value == null) {
+            return null;
+        }
+        final Set<String> strings = new HashSet<>();
+        for (SequenceIterator i = value.iterate(); i.hasNext(); ) {
+            strings.add(i.nextItem().getStringValue());
+        }
+        return strings;
+    }
+
+    static Sequence get(AbstractMapType options, String key) throws XPathException {
+        if (options == null) {
+            return null;
+        }
+        final Sequence value = options.get(new StringValue(key));
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.*;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Reports the progress of the {@link Preloader}.
+ */
+public class PreloadStatus extends BasicFunction {
+
+    public final static FunctionSignature signature =
+        new FunctionSignature(
+            new QName("preload-status", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Report the state of the classifiers and segmenter configured to be loaded at startup. " +
+            "The attribute 'ready' of the returned element is true once preloading has finished.",
+            new SequenceType[0],
+            new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                "An element describing the state of preloading")
+        );
+
+    public PreloadStatus(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            AttributesImpl attribs = new AttributesImpl();
+            attribs.addAttribute("", "ready", "ready", "CDATA", Boolean.toString(Preloader.isReady()));
+            final int nodeNr = builder.startElement("", "preload", "preload", attribs);
+            for (Preloader.Status status : Preloader.getStatus()) {
+                attribs = new AttributesImpl();
+                attribs.addAttribute("", "path", "path", "CDATA", status.getPath());
+                attribs.addAttribute("", "state", "state", "CDATA", status.getState().name().toLowerCase());
+                attribs.addAttribute("", "time", "time", "CDATA", Long.toString(status.getTime()));
+                if (status.getMessage() != null) {
+                    attribs.addAttribute("", "message", "message", "CDATA", status.getMessage());
+                }
+                final String name = status.isSegmenter() ? "segmenter" : "classifier";
+                builder.startElement("", name, name, attribs);
+                builder.endElement();
+            }
+            builder.endElement();
+            return builder.getDocument().getNode(nodeNr);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+}
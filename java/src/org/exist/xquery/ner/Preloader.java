@@ -0,0 +1,231 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.xquery.XPathException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loads the classifiers and the Chinese segmenter listed in the module configuration on a
+ * background thread, so the first query using them does not pay for deserialization and
+ * JIT compilation. Each classifier is run a number of times on a sample text after loading.
+ *
+ * eXist creates a module instance for every query context, so preloading is started by the
+ * first instance only.
+ */
+public class Preloader {
+
+    private final static Logger LOG = LogManager.getLogger(Preloader.class);
+
+    public final static int DEFAULT_WARMUP_ITERATIONS = 20;
+
+    private final static String WARMUP_TEXT =
+            "The fate of Lehman Brothers, the beleaguered investment bank, hung in the balance on Sunday as " +
+            "Federal Reserve officials and the leaders of major financial institutions continued to gather " +
+            "in emergency meetings in New York. Timothy R. Geithner, the president of the New York Fed, and " +
+            "Treasury Secretary Henry M. Paulson Jr. led the talks.";
+
+    private final static long WAIT_FOR_DATABASE = 1000;
+
+    public enum State { PENDING, LOADING, READY, FAILED }
+
+    /**
+     * Preload state of a single classifier or segmenter.
+     */
+    public static class Status {
+
+        private final String path;
+        private final boolean segmenter;
+        private volatile State state = State.PENDING;
+        private volatile String message = null;
+        private volatile long time = 0;
+
+        Status(String path, boolean segmenter) {
+            this.path = path;
+            this.segmenter = segmenter;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isSegmenter() {
+            return segmenter;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * The error message if preloading failed.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Time in milliseconds it took to load and warm up.
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+
+    private final static AtomicBoolean started = new AtomicBoolean();
+    private static volatile List<Status> status = new ArrayList<>();
+
+    /**
+     * Start preloading, unless it was started before.
+     *
+     * @param classifiers database paths of the classifiers to load
+     * @param segmenterDir file system directory containing the Chinese segmenter data, or null
+     * @param iterations the number of warm-up runs for each classifier
+     */
+    public static void start(List<String> classifiers, String segmenterDir, int iterations) {
+        if ((classifiers.isEmpty() && segmenterDir == null) || !started.compareAndSet(false, true)) {
+            return;
+        }
+        final List<Status> list = new ArrayList<>();
+        for (String path : classifiers) {
+            list.add(new Status(path, false));
+        }
+        if (segmenterDir != null) {
+            list.add(new Status(segmenterDir, true));
+        }
+        status = list;
+        final Thread thread = new Thread(() -> run(list, iterations), "stanford-ner-preload");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public static List<Status> getStatus() {
+        return status;
+    }
+
+    /**
+     * True if nothing is left to preload. Failed items count as done.
+     */
+    public static boolean isReady() {
+        for (Status s : status) {
+            if (s.state == State.PENDING || s.state == State.LOADING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void run(List<Status> list, int iterations) {
+        for (Status s : list) {
+            if (s.segmenter) {
+                preloadSegmenter(s);
+            }
+        }
+        final BrokerPool pool = waitForDatabase();
+        if (pool == null) {
+            return;
+        }
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            for (Status s : list) {
+                if (!s.segmenter) {
+                    preloadClassifier(broker, s, iterations);
+                }
+            }
+        } catch (EXistException e) {
+            LOG.warn("Failed to preload classifiers: " + e.getMessage(), e);
+            for (Status s : list) {
+                if (s.state == State.PENDING) {
+                    fail(s, e.getMessage());
+                }
+            }
+        } finally {
+            if (broker != null) {
+                pool.release(broker);
+            }
+        }
+    }
+
+    private static void preloadClassifier(DBBroker broker, Status s, int iterations) {
+        s.state = State.LOADING;
+        final long start = System.currentTimeMillis();
+        try {
+            final LoadedClassifier loaded = ClassifierRegistry.getInstance().get(broker, s.path);
+            // bypass the result cache: the classifier itself needs to run
+            for (int i = 0; i < iterations; i++) {
+                loaded.getClassifier().classify(WARMUP_TEXT);
+            }
+            s.time = System.currentTimeMillis() - start;
+            s.state = State.READY;
+            LOG.info("Preloaded classifier " + s.path + " in " + s.time + "ms");
+        } catch (XPathException | RuntimeException e) {
+            fail(s, e.getMessage());
+        }
+    }
+
+    private static void preloadSegmenter(Status s) {
+        s.state = State.LOADING;
+        final long start = System.currentTimeMillis();
+        try {
+            ChineseSegmenter.getInstance(new File(s.path));
+            s.time = System.currentTimeMillis() - start;
+            s.state = State.READY;
+        } catch (XPathException | RuntimeException e) {
+            fail(s, e.getMessage());
+        }
+    }
+
+    private static void fail(Status s, String message) {
+        LOG.warn("Failed to preload " + s.path + ": " + message);
+        s.message = message;
+        s.state = State.FAILED;
+    }
+
+    /**
+     * The module may be instantiated while the database is still starting up.
+     */
+    static BrokerPool waitForDatabase() {
+        while (true) {
+            if (BrokerPool.isConfigured()) {
+                try {
+                    return BrokerPool.getInstance();
+                } catch (EXistException e) {
+                    LOG.debug("Database not yet available: " + e.getMessage());
+                }
+            }
+            try {
+                Thread.sleep(WAIT_FOR_DATABASE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import edu.stanford.nlp.ie.AbstractSequenceClassifier;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.storage.BrokerPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the output of the classifier, so unchanged text is not classified again. Entries
+ * are keyed by a hash of the text together with the path and modification time of the
+ * classifier resource: storing a new version of a model makes its old results unreachable.
+ *
+ * Results are kept in a compact binary form in an in-memory LRU map. Results for longer
+ * texts are also written to a directory below the eXist data directory, so they survive a
+ * restart. Both tiers have a size limit; setting a limit to 0 disables the tier.
+ */
+public class ResultCache {
+
+    private final static Logger LOG = LogManager.getLogger(ResultCache.class);
+
+    private final static ResultCache instance = new ResultCache();
+
+    public static ResultCache getInstance() {
+        return instance;
+    }
+
+    public final static long DEFAULT_SIZE = 64 * 1024 * 1024;
+    public final static long DEFAULT_DISK_SIZE = 1024 * 1024 * 1024;
+
+    /** texts shorter than this are only cached in memory: classifying them is cheaper than a file access */
+    private final static int MIN_DISK_LENGTH = 256;
+
+    /** approximate overhead of a map entry in memory */
+    private final static int ENTRY_OVERHEAD = 96;
+
+    private final static int FORMAT_VERSION = 1;
+
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long used = 0;
+    private volatile long maxSize = DEFAULT_SIZE;
+
+    private volatile File directory = null;
+    private volatile long maxDiskSize = DEFAULT_DISK_SIZE;
+    private final AtomicLong diskUsed = new AtomicLong();
+    /** guards cleanup of the disk tier */
+    private final Object diskLock = new Object();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private ResultCache() {
+    }
+
+    public void setMaxSize(long maxSize) {
+        if (maxSize == this.maxSize) {
+            return;
+        }
+        this.maxSize = maxSize;
+        synchronized (entries) {
+            shrink();
+        }
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxDiskSize(long maxDiskSize) {
+        this.maxDiskSize = maxDiskSize;
+    }
+
+    public long getMaxDiskSize() {
+        return maxDiskSize;
+    }
+
+    /**
+     * Locate the disk tier below the data directory of the database. Called whenever a
+     * classifier is loaded; only the first call has an effect.
+     */
+    public void configure(BrokerPool pool) {
+        if (directory != null) {
+            return;
+        }
+        final File dir = StanfordNERModule.getDataDirectory(pool, "results");
+        if (dir == null) {
+            return;
+        }
+        synchronized (diskLock) {
+            if (directory == null) {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    LOG.warn("Unable to create result cache directory " + dir.getAbsolutePath());
+                    return;
+                }
+                diskUsed.set(sizeOf(dir));
+                directory = dir;
+            }
+        }
+    }
+
+    /**
+     * Classify the text using the given classifier, unless a result for the same text and
+     * version of the classifier is cached.
+     */
+    public List<List<CoreLabel>> classify(LoadedClassifier loaded, String text) {
+        final boolean useDisk = directory != null && maxDiskSize > 0 && text.length() >= MIN_DISK_LENGTH;
+        if (maxSize <= 0 && !useDisk) {
+            return run(loaded, text);
+        }
+        final String key = getKey(loaded) + '/' + digest(text);
+        List<List<CoreLabel>> out = decode(getEntry(key));
+        if (out != null) {
+            hits.incrementAndGet();
+            return out;
+        }
+        if (useDisk) {
+            final byte[] data = read(key);
+            out = decode(data);
+            if (out != null) {
+                diskHits.incrementAndGet();
+                putEntry(key, data);
+                return out;
+            }
+        }
+        misses.incrementAndGet();
+        out = run(loaded, text);
+        final byte[] data = encode(out);
+        if (data != null) {
+            putEntry(key, data);
+            if (useDisk) {
+                write(key, data);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Same as {@link AbstractSequenceClassifier#classify(String)}, but checks the limits of the
+     * current call (see {@link Limits}) before every sentence.
+     */
+    private static List<List<CoreLabel>> run(LoadedClassifier loaded, String text) {
+        final long start = System.nanoTime();
+        final AbstractSequenceClassifier<CoreLabel> classifier = loaded.getClassifier();
+        final List<List<CoreLabel>> out = new ArrayList<>();
+        for (List<CoreLabel> sentence : classifier.makeObjectBankFromString(text, classifier.plainTextReaderAndWriter())) {
+            Limits.check();
+            classifier.classify(sentence);
+            out.add(new ArrayList<>(sentence));
+        }
+        final Metrics metrics = Metrics.getInstance();
+        metrics.time(Metrics.INFERENCE, start);
+        int tokens = 0;
+        for (List<CoreLabel> sentence : out) {
+            tokens += sentence.size();
+        }
+        metrics.classified(tokens);
+        return out;
+    }
+
+    /**
+     * Drop all results produced by the classifier loaded from path, in memory and on disk.
+     */
+    public void invalidate(String path) {
+        final String prefix = digest(path) + '/';
+        synchronized (entries) {
+            for (Iterator<Map.Entry<String, byte[]>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+                final Map.Entry<String, byte[]> entry = i.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    used -= entry.getValue().length + entry.getKey().length() * 2 + ENTRY_OVERHEAD;
+                    i.remove();
+                }
+            }
+        }
+        final File dir = directory;
+        if (dir != null) {
+            synchronized (diskLock) {
+                diskUsed.addAndGet(-delete(new File(dir, digest(path))));
+            }
+        }
+    }
+
+    /**
+     * Drop all cached results.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            used = 0;
+        }
+        final File dir = directory;
+        if (dir != null) {
+            synchronized (diskLock) {
+                final File[] children = dir.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        delete(child);
+                    }
+                }
+                diskUsed.set(sizeOf(dir));
+            }
+        }
+    }
+
+    /**
+     * Remove results on disk which belong to older versions of the given classifier.
+     */
+    void removeOutdated(LoadedClassifier loaded) {
+        final File dir = directory;
+        if (dir == null) {
+            return;
+        }
+        final File[] versions = new File(dir, digest(loaded.getPath())).listFiles();
+        if (versions == null) {
+            return;
+        }
+        final String current = Long.toString(loaded.getLastModified());
+        synchronized (diskLock) {
+            for (File version : versions) {
+                if (!version.getName().equals(current)) {
+                    diskUsed.addAndGet(-delete(version));
+                }
+            }
+        }
+    }
+
+    public int getEntries() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getUsed() {
+        synchronized (entries) {
+            return used;
+        }
+    }
+
+    public long getDiskUsed() {
+        return diskUsed.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Fraction of lookups answered from memory or disk.
+     */
+    public double getHitRate() {
+        final long found = hits.get() + diskHits.get();
+        final long lookups = found + misses.get();
+        return lookups == 0 ? 0 : (double) found / lookups;
+    }
+
+    private byte[] getEntry(String key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private void putEntry(String key, byte[] data) {
+        final long size = data.length + key.length() * 2 + ENTRY_OVERHEAD;
+        if (size > maxSize) {
+            return;
+        }
+        synchronized (entries) {
+            final byte[] old = entries.put(key, data);
+            if (old != null) {
+                used -= old.length + key.length() * 2 + ENTRY_OVERHEAD;
+            }
+            used += size;
+            shrink();
+        }
+    }
+
+    private void shrink() {
+        for (Iterator<Map.Entry<String, byte[]>> i = entries.entrySet().iterator(); i.hasNext() && used > maxSize; ) {
+            final Map.Entry<String, byte[]> entry = i.next();
+            used -= entry.getValue().length + entry.getKey().length() * 2 + ENTRY_OVERHEAD;
+            i.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private byte[] read(String key) {
+        final File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            final byte[] data = Files.readAllBytes(file.toPath());
+            // record the access, so the cleanup removes the least recently used entries first
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            LOG.debug("Failed to read cached result " + file.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void write(String key, byte[] data) {
+        final File file = getFile(key);
+        final File dir = file.getParentFile();
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("unable to create directory " + dir.getAbsolutePath());
+            }
+            // write to a temporary file first, so concurrent readers never see a partial entry
+            final File temp = File.createTempFile("result", ".tmp", dir);
+            Files.write(temp.toPath(), data);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Failed to write result to cache: " + e.getMessage());
+            return;
+        }
+        if (diskUsed.addAndGet(data.length) > maxDiskSize) {
+            cleanup();
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the disk tier uses no more than 90% of its budget.
+     */
+    private void cleanup() {
+        synchronized (diskLock) {
+            final File dir = directory;
+            if (dir == null || diskUsed.get() <= maxDiskSize) {
+                return;
+            }
+            final List<File> files = new ArrayList<>();
+            listFiles(dir, files);
+            final long[] lastModified = new long[files.size()];
+            final Integer[] order = new Integer[files.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+                lastModified[i] = files.get(i).lastModified();
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+            long total = 0;
+            for (File file : files) {
+                total += file.length();
+            }
+            final long target = maxDiskSize / 10 * 9;
+            for (int i = 0; i < order.length && total > target; i++) {
+                final File file = files.get(order[i]);
+                final long length = file.length();
+                if (file.delete()) {
+                    total -= length;
+                }
+            }
+            diskUsed.set(total);
+            LOG.debug("Result cache cleanup: " + total + " bytes left on disk");
+        }
+    }
+
+    private File getFile(String key) {
+        // key is: model digest / last modified / text digest
+        final int slash = key.lastIndexOf('/');
+        final String dir = key.substring(0, slash + 1) + key.substring(slash + 1, slash + 3);
+        return new File(new File(directory, dir), key.substring(slash + 1));
+    }
+
+    private static String getKey(LoadedClassifier loaded) {
+        return digest(loaded.getPath()) + '/' + loaded.getLastModified();
+    }
+
+    /**
+     * Serialize the parts of the classifier output used by the markup code. Returns null if
+     * the output cannot be serialized.
+     */
+    private static byte[] encode(List<List<CoreLabel>> out) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (final DataOutputStream os = new DataOutputStream(bytes)) {
+            os.writeByte(FORMAT_VERSION);
+            os.writeInt(out.size());
+            for (List<CoreLabel> sentence : out) {
+                os.writeInt(sentence.size());
+                for (CoreLabel word : sentence) {
+                    os.writeUTF(word.get(CoreAnnotations.OriginalTextAnnotation.class));
+                    os.writeUTF(word.get(CoreAnnotations.AnswerAnnotation.class));
+                    writeOptional(os, word.get(CoreAnnotations.BeforeAnnotation.class));
+                    writeOptional(os, word.get(CoreAnnotations.AfterAnnotation.class));
+                    os.writeInt(word.beginPosition());
+                    os.writeInt(word.endPosition());
+                }
+            }
+        } catch (IOException e) {
+            // a token or whitespace run too long for writeUTF: do not cache
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restore the classifier output from its binary form. Returns null if data is null or corrupt.
+     */
+    private static List<List<CoreLabel>> decode(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try (final DataInputStream is = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (is.readByte() != FORMAT_VERSION) {
+                throw new IOException("unknown format version");
+            }
+            final int sentences = is.readInt();
+            final List<List<CoreLabel>> out = new ArrayList<>(sentences);
+            for (int i = 0; i < sentences; i++) {
+                final int words = is.readInt();
+                final List<CoreLabel> sentence = new ArrayList<>(words);
+                for (int j = 0; j < words; j++) {
+                    final CoreLabel word = new CoreLabel();
+                    final String text = is.readUTF();
+                    word.setOriginalText(text);
+                    word.setWord(text);
+                    word.setValue(text);
+                    word.set(CoreAnnotations.AnswerAnnotation.class, is.readUTF().intern());
+                    final String before = readOptional(is);
+                    if (before != null) {
+                        word.setBefore(before);
+                    }
+                    final String after = readOptional(is);
+                    if (after != null) {
+                        word.setAfter(after);
+                    }
+                    word.setBeginPosition(is.readInt());
+                    word.setEndPosition(is.readInt());
+                    sentence.add(word);
+                }
+                out.add(sentence);
+            }
+            return out;
+        } catch (IOException e) {
+            LOG.warn("Corrupt entry in result cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeOptional(DataOutputStream os, String s) throws IOException {
+        os.writeBoolean(s != null);
+        if (s != null) {
+            os.writeUTF(s);
+        }
+    }
+
+    private static String readOptional(DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readUTF() : null;
+    }
+
+    static String digest(String s) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] hash = md.digest(s.getBytes(StandardCharsets.UTF_8));
+        final StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void listFiles(File dir, List<File> files) {
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                listFiles(child, files);
+            } else {
+                files.add(child);
+            }
+        }
+    }
+
+    private static long sizeOf(File dir) {
+        final List<File> files = new ArrayList<>();
+        listFiles(dir, files);
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    /**
+     * Delete a file or directory tree, returning the number of bytes freed.
+     */
+    private static long delete(File file) {
+        long freed = 0;
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                freed += delete(child);
+            }
+        } else {
+            freed = file.length();
+        }
+        return file.delete() || !file.exists() ? freed : 0;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.*;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Reports the state of the {@link ResultCache} and drops cached results.
+ */
+public class ResultCacheFunctions extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+        new FunctionSignature(
+            new QName("result-cache", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Report the size limits, usage and hit/miss counters of the cache for classification results.",
+            new SequenceType[0],
+            new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                "An element describing the result cache")
+        ),
+        new FunctionSignature(
+            new QName("clear-result-cache", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Drop all cached classification results, in memory and on disk.",
+            new SequenceType[0],
+            new FunctionReturnSequenceType(Type.EMPTY, Cardinality.EMPTY, "")
+        ),
+        new FunctionSignature(
+            new QName("clear-result-cache", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Drop the cached classification results produced by the given classifier, in memory and on disk.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("classifier", Type.ANY_URI, Cardinality.EXACTLY_ONE,
+                    "The path to the classifier whose results should be dropped")
+            },
+            new FunctionReturnSequenceType(Type.EMPTY, Cardinality.EMPTY, "")
+        )
+    };
+
+    public ResultCacheFunctions(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final ResultCache cache = ResultCache.getInstance();
+        if (isCalledAs("clear-result-cache")) {
+            if (getArgumentCount() == 1) {
+                cache.invalidate(args[0].getStringValue());
+            } else {
+                cache.invalidateAll();
+            }
+            return Sequence.EMPTY_SEQUENCE;
+        }
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            final AttributesImpl attribs = new AttributesImpl();
+            addAttribute(attribs, "size", cache.getMaxSize());
+            addAttribute(attribs, "used", cache.getUsed());
+            addAttribute(attribs, "entries", cache.getEntries());
+            addAttribute(attribs, "disk-size", cache.getMaxDiskSize());
+            addAttribute(attribs, "disk-used", cache.getDiskUsed());
+            addAttribute(attribs, "hits", cache.getHits());
+            addAttribute(attribs, "disk-hits", cache.getDiskHits());
+            addAttribute(attribs, "misses", cache.getMisses());
+            addAttribute(attribs, "evictions", cache.getEvictions());
+            attribs.addAttribute("", "hit-rate", "hit-rate", "CDATA", Double.toString(cache.getHitRate()));
+            final int nodeNr = builder.startElement("", "result-cache", "result-cache", attribs);
+            builder.endElement();
+            return builder.getDocument().getNode(nodeNr);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    private static void addAttribute(AttributesImpl attribs, String name, long value) {
+        attribs.addAttribute("", name, name, "CDATA", Long.toString(value));
+    }
+}
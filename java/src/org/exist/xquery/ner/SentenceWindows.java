@@ -0,0 +1,184 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.sequences.SeqClassifierFlags;
+import org.exist.xquery.XPathException;
+import org.xml.sax.SAXException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Classifies a long text window by window instead of all at once, so the tokens of only one
+ * window are held in memory. Every window is classified together with some text following it
+ * and the output is passed on up to the last sentence ending within the window: as the
+ * classifier labels every sentence on its own, the result is the same as for the whole text.
+ *
+ * Only if a window does not contain the end of a sentence, it is cut between two tokens outside
+ * of any entity. The next window then starts a bit earlier to give the classifier some context,
+ * but labels near the cut may differ from those for the whole text.
+ */
+public class SentenceWindows {
+
+    /**
+     * Receives the classifier output for consecutive pieces of the text.
+     */
+    public interface Handler {
+
+        void process(List<List<CoreLabel>> sentences) throws XPathException, SAXException;
+    }
+
+    public final static int DEFAULT_WINDOW_SIZE = 32768;
+
+    /** characters classified beyond the end of a window */
+    private final static int OVERLAP = 512;
+
+    private static volatile int windowSize = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * Set the window size in characters. 0 disables windowing.
+     */
+    public static void setWindowSize(int size) {
+        windowSize = Math.max(0, size);
+    }
+
+    public static int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * True if the text is long enough to be classified window by window.
+     */
+    public static boolean isLong(String text) {
+        final int size = windowSize;
+        return size > 0 && text.length() > size + OVERLAP;
+    }
+
+    public static void classify(LoadedClassifier classifier, String text, Handler handler)
+            throws XPathException, SAXException {
+        final int size = Math.max(1, windowSize);
+        final int length = text.length();
+        // the windows overlap, so account for the text once instead of window by window
+        Limits.input(length);
+        final ResultCache cache = ResultCache.getInstance();
+        // end of the text passed to the handler so far
+        int emitted = 0;
+        boolean midSentence = false;
+        while (true) {
+            final int start = midSentence ? whitespaceAfter(text, Math.max(0, emitted - OVERLAP), emitted) : emitted;
+            final int cut = emitted + size;
+            final boolean last = cut + OVERLAP >= length;
+            final int end = last ? length : whitespaceAfter(text, cut + OVERLAP, length);
+            final List<List<CoreLabel>> out = cache.classify(classifier, text.substring(start, end));
+            final List<List<CoreLabel>> tokens = from(out, emitted - start);
+            if (last || end == length) {
+                handler.process(tokens);
+                return;
+            }
+            final List<List<CoreLabel>> piece = new ArrayList<>();
+            midSentence = select(tokens, cut - start, piece);
+            if (piece.isEmpty()) {
+                // nothing but whitespace: classify the remaining text at once
+                handler.process(cache.classify(classifier, text.substring(emitted)));
+                return;
+            }
+            final List<CoreLabel> lastSentence = piece.get(piece.size() - 1);
+            final CoreLabel lastToken = lastSentence.get(lastSentence.size() - 1);
+            if (lastToken.get(CoreAnnotations.AfterAnnotation.class) != null) {
+                // following whitespace is written as part of the next token
+                final CoreLabel copy = new CoreLabel(lastToken);
+                copy.remove(CoreAnnotations.AfterAnnotation.class);
+                lastSentence.set(lastSentence.size() - 1, copy);
+            }
+            emitted = start + lastToken.endPosition();
+            handler.process(piece);
+        }
+    }
+
+    /**
+     * The tokens starting at or after the given offset.
+     */
+    private static List<List<CoreLabel>> from(List<List<CoreLabel>> out, int offset) {
+        final List<List<CoreLabel>> tokens = new ArrayList<>(out.size());
+        for (List<CoreLabel> sentence : out) {
+            int first = 0;
+            while (first < sentence.size() && sentence.get(first).beginPosition() < offset) {
+                first++;
+            }
+            if (first < sentence.size()) {
+                tokens.add(new ArrayList<>(sentence.subList(first, sentence.size())));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Copy the sentences up to the last one ending before cut into piece. If no sentence ends
+     * before cut, copy the tokens up to the last position before cut which is not inside an
+     * entity and return true.
+     */
+    private static boolean select(List<List<CoreLabel>> tokens, int cut, List<List<CoreLabel>> piece) {
+        int sentences = 0;
+        while (sentences < tokens.size()) {
+            final List<CoreLabel> sentence = tokens.get(sentences);
+            if (sentence.get(sentence.size() - 1).endPosition() > cut) {
+                break;
+            }
+            sentences++;
+        }
+        if (sentences > 0) {
+            piece.addAll(tokens.subList(0, sentences));
+            return false;
+        }
+        final List<CoreLabel> sentence = tokens.isEmpty() ? null : tokens.get(0);
+        if (sentence == null) {
+            return true;
+        }
+        final String background = SeqClassifierFlags.DEFAULT_BACKGROUND_SYMBOL;
+        int split = -1;
+        for (int i = 0; i + 1 < sentence.size() && sentence.get(i + 1).beginPosition() < cut; i++) {
+            if (background.equals(sentence.get(i).get(CoreAnnotations.AnswerAnnotation.class)) &&
+                    background.equals(sentence.get(i + 1).get(CoreAnnotations.AnswerAnnotation.class))) {
+                split = i;
+            }
+        }
+        if (split < 0) {
+            // a single entity filling the whole window
+            piece.add(sentence);
+            return false;
+        }
+        piece.add(new ArrayList<>(sentence.subList(0, split + 1)));
+        return true;
+    }
+
+    /**
+     * Position of the first whitespace character at or after from, or to if there is none.
+     */
+    private static int whitespaceAfter(String text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                return i;
+            }
+        }
+        return to;
+    }
+}
@@ -18,9 +18,14 @@
  */
 package org.exist.xquery.ner;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.storage.BrokerPool;
 import org.exist.xquery.AbstractInternalModule;
 import org.exist.xquery.FunctionDef;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -31,6 +36,8 @@ import java.util.Map;
  */
 public class StanfordNERModule extends AbstractInternalModule {
 
+    private final static Logger LOG = LogManager.getLogger(StanfordNERModule.class);
+
     public final static String NAMESPACE_URI = "http://exist-db.org/xquery/stanford-ner";
     public final static String PREFIX = "ner";
 
@@ -40,11 +47,250 @@ public class StanfordNERModule extends AbstractInternalModule {
         new FunctionDef(Classify.signatures[2], Classify.class),
         new FunctionDef(Classify.signatures[3], Classify.class),
         new FunctionDef(Classify.signatures[4], Classify.class),
-        new FunctionDef(Classify.signatures[5], Classify.class)
+        new FunctionDef(Classify.signatures[5], Classify.class),
+        new FunctionDef(Classify.signatures[6], Classify.class),
+        new FunctionDef(Classify.signatures[7], Classify.class),
+        new FunctionDef(ClassifyStrings.signatures[0], ClassifyStrings.class),
+        new FunctionDef(ClassifyStrings.signatures[1], ClassifyStrings.class),
+        new FunctionDef(ClassifyStore.signatures[0], ClassifyStore.class),
+        new FunctionDef(ClassifyStore.signatures[1], ClassifyStore.class),
+        new FunctionDef(ExtractEntities.signature, ExtractEntities.class),
+        new FunctionDef(CacheStatistics.signature, CacheStatistics.class),
+        new FunctionDef(ResultCacheFunctions.signatures[0], ResultCacheFunctions.class),
+        new FunctionDef(ResultCacheFunctions.signatures[1], ResultCacheFunctions.class),
+        new FunctionDef(ResultCacheFunctions.signatures[2], ResultCacheFunctions.class),
+        new FunctionDef(PreloadStatus.signature, PreloadStatus.class),
+        new FunctionDef(Stats.signature, Stats.class),
+        new FunctionDef(CompileClassifier.signature, CompileClassifier.class),
+        new FunctionDef(JobFunctions.signatures[0], JobFunctions.class),
+        new FunctionDef(JobFunctions.signatures[1], JobFunctions.class),
+        new FunctionDef(JobFunctions.signatures[2], JobFunctions.class),
+        new FunctionDef(JobFunctions.signatures[3], JobFunctions.class),
+        new FunctionDef(EntityIndexFunctions.signatures[0], EntityIndexFunctions.class),
+        new FunctionDef(EntityIndexFunctions.signatures[1], EntityIndexFunctions.class),
+        new FunctionDef(EntityIndexFunctions.signatures[2], EntityIndexFunctions.class)
     };
 
+    /**
+     * Module parameter: maximum memory the loaded classifiers may occupy, e.g. "1024m" or "2g".
+     */
+    public final static String PARAM_CACHE_SIZE = "classifier-cache-size";
+
+    /**
+     * Module parameter: maximum memory used to cache classification results. "0" disables the in-memory tier.
+     */
+    public final static String PARAM_RESULT_CACHE_SIZE = "result-cache-size";
+
+    /**
+     * Module parameter: maximum disk space used to cache classification results. "0" disables the disk tier.
+     */
+    public final static String PARAM_RESULT_CACHE_DISK_SIZE = "result-cache-disk-size";
+
+    /**
+     * Module parameter: maximum number of Chinese segmenter models loaded per data directory.
+     */
+    public final static String PARAM_SEGMENTER_POOL_SIZE = "segmenter-pool-size";
+
+    /**
+     * Module parameter: directory containing the Chinese segmenter data. If set, the segmenter
+     * is loaded in the background when the module is initialized.
+     */
+    public final static String PARAM_SEGMENTER_PRELOAD = "segmenter-preload";
+
+    /**
+     * Module parameter: database path of a classifier to load in the background when the module
+     * is initialized. May be repeated or contain a comma-separated list of paths.
+     */
+    public final static String PARAM_PRELOAD = "preload";
+
+    /**
+     * Module parameter: number of times each preloaded classifier is run on a sample text.
+     */
+    public final static String PARAM_WARMUP_ITERATIONS = "warmup-iterations";
+
+    /**
+     * Module parameter: if "yes", classifiers are compiled automatically after they were
+     * loaded for the first time (see {@link ModelStore}).
+     */
+    public final static String PARAM_COMPILE = "compile-classifiers";
+
+    /**
+     * Module parameter: strings longer than this number of characters are classified window by
+     * window (see {@link SentenceWindows}). "0" disables windowing.
+     */
+    public final static String PARAM_CLASSIFY_WINDOW = "classify-window";
+
+    /**
+     * Module parameter: number of jobs submitted with ner:submit-job running at the same time.
+     */
+    public final static String PARAM_JOB_THREADS = "job-threads";
+
+    /**
+     * Module parameter: maximum number of jobs waiting to be run. Further jobs are rejected.
+     */
+    public final static String PARAM_JOB_QUEUE_SIZE = "job-queue-size";
+
+    /**
+     * Module parameter: maximum number of characters classified in one function call. "0" means no limit.
+     */
+    public final static String PARAM_MAX_INPUT_LENGTH = "max-input-length";
+
+    /**
+     * Module parameter: maximum number of function calls classifying at the same time (see {@link Limits}).
+     * "0" means no limit.
+     */
+    public final static String PARAM_MAX_CONCURRENT = "max-concurrent-inferences";
+
+    /**
+     * Module parameter: maximum number of function calls waiting for one of the running calls to
+     * complete. Further calls are rejected.
+     */
+    public final static String PARAM_MAX_QUEUED = "max-queued-inferences";
+
+    /**
+     * Module parameter: maximum time in milliseconds a function call may take. "0" means no limit.
+     */
+    public final static String PARAM_TIMEOUT = "classify-timeout";
+
     public StanfordNERModule(Map<String, List<? extends Object>> parameters) {
         super(functions, parameters, false);
+        NERMetrics.register();
+        ClassifierRegistry.getInstance().setBudget(
+                getSizeParameter(parameters, PARAM_CACHE_SIZE, ClassifierRegistry.DEFAULT_BUDGET));
+        ResultCache.getInstance().setMaxSize(
+                getSizeParameter(parameters, PARAM_RESULT_CACHE_SIZE, ResultCache.DEFAULT_SIZE));
+        ResultCache.getInstance().setMaxDiskSize(
+                getSizeParameter(parameters, PARAM_RESULT_CACHE_DISK_SIZE, ResultCache.DEFAULT_DISK_SIZE));
+        ChineseSegmenter.setPoolSize(
+                getIntParameter(parameters, PARAM_SEGMENTER_POOL_SIZE, ChineseSegmenter.DEFAULT_POOL_SIZE));
+        SentenceWindows.setWindowSize(
+                getIntParameter(parameters, PARAM_CLASSIFY_WINDOW, SentenceWindows.DEFAULT_WINDOW_SIZE));
+        Limits.setMaxInputLength(getLongParameter(parameters, PARAM_MAX_INPUT_LENGTH, 0));
+        Limits.setTimeout(getLongParameter(parameters, PARAM_TIMEOUT, 0));
+        Limits.setMaxConcurrent((int) getLongParameter(parameters, PARAM_MAX_CONCURRENT, 0),
+                (int) getLongParameter(parameters, PARAM_MAX_QUEUED, Limits.DEFAULT_MAX_QUEUED));
+        ModelStore.getInstance().setAutoCompile("yes".equals(getParameter(parameters, PARAM_COMPILE)));
+        Preloader.start(getParameters(parameters, PARAM_PRELOAD), getParameter(parameters, PARAM_SEGMENTER_PRELOAD),
+                getIntParameter(parameters, PARAM_WARMUP_ITERATIONS, Preloader.DEFAULT_WARMUP_ITERATIONS));
+        JobManager.getInstance().configure(
+                getIntParameter(parameters, PARAM_JOB_THREADS, JobManager.DEFAULT_THREADS),
+                getIntParameter(parameters, PARAM_JOB_QUEUE_SIZE, JobManager.DEFAULT_QUEUE_SIZE));
+        JobManager.getInstance().resume();
+        IncrementalAnnotator.getInstance().resume();
+    }
+
+    static String getParameter(Map<String, List<? extends Object>> parameters, String name) {
+        if (parameters == null) {
+            return null;
+        }
+        final List<? extends Object> values = parameters.get(name);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        return values.get(0).toString();
+    }
+
+    /**
+     * Returns the numeric value of the parameter, or the default if it is not set or not a number.
+     */
+    static long getLongParameter(Map<String, List<? extends Object>> parameters, String name, long defaultValue) {
+        final String value = getParameter(parameters, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid value for module parameter " + name + ": " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * As {@link #getLongParameter}, for parameters which must fit into an int.
+     */
+    static int getIntParameter(Map<String, List<? extends Object>> parameters, String name, int defaultValue) {
+        final long value = getLongParameter(parameters, name, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            LOG.warn("Invalid value for module parameter " + name + ": " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Returns all values given for the parameter. Each value may be a comma-separated list.
+     */
+    static List<String> getParameters(Map<String, List<? extends Object>> parameters, String name) {
+        final List<String> result = new ArrayList<>();
+        if (parameters == null || parameters.get(name) == null) {
+            return result;
+        }
+        for (Object value : parameters.get(name)) {
+            for (String s : value.toString().split(",")) {
+                if (!s.trim().isEmpty()) {
+                    result.add(s.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the directory with the given name below the module's directory inside the
+     * eXist data directory, or null if the data directory is unknown. The directory is not created.
+     */
+    static File getDataDirectory(BrokerPool pool, String name) {
+        final Object dataDir = pool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        if (dataDir == null) {
+            return null;
+        }
+        return new File(new File(dataDir.toString(), "stanford-ner"), name);
+    }
+
+    /**
+     * Returns the memory size given for the parameter (see {@link #parseSize}), or the default if it
+     * is not set or cannot be parsed.
+     */
+    static long getSizeParameter(Map<String, List<? extends Object>> parameters, String name, long defaultValue) {
+        final String value = getParameter(parameters, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return parseSize(value);
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid size for module parameter " + name + ": " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parse a memory size given in bytes, optionally followed by one of the units k, m or g.
+     *
+     * @throws NumberFormatException if the size is empty or not a number
+     */
+    static long parseSize(String size) {
+        size = size.trim().toLowerCase();
+        if (size.isEmpty()) {
+            throw new NumberFormatException("empty size");
+        }
+        long factor = 1;
+        switch (size.charAt(size.length() - 1)) {
+            case 'k':
+                factor = 1024;
+                break;
+            case 'm':
+                factor = 1024 * 1024;
+                break;
+            case 'g':
+                factor = 1024 * 1024 * 1024;
+                break;
+        }
+        if (factor > 1) {
+            size = size.substring(0, size.length() - 1).trim();
+        }
+        return Long.parseLong(size) * factor;
     }
 
     @Override
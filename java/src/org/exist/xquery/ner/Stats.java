@@ -0,0 +1,121 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.*;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.Map;
+
+/**
+ * Reports the module's {@link Metrics}. The same information is available through JMX, see {@link NERMetrics}.
+ */
+public class Stats extends BasicFunction {
+
+    public final static FunctionSignature signature =
+        new FunctionSignature(
+            new QName("stats", StanfordNERModule.NAMESPACE_URI, StanfordNERModule.PREFIX),
+            "Report runtime statistics: the number of texts and tokens classified, the time spent loading " +
+            "models, classifying, writing markup, calling callbacks and segmenting Chinese text (in " +
+            "milliseconds), the memory held by the loaded models and, for every function of the module, " +
+            "the number of calls and their mean, 50th, 90th and 99th percentile and maximum latency (in " +
+            "microseconds). Markup time does not include the time spent in callbacks.",
+            new SequenceType[0],
+            new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE,
+                "An element containing the statistics")
+        );
+
+    public Stats(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final Metrics metrics = Metrics.getInstance();
+        final ClassifierRegistry registry = ClassifierRegistry.getInstance();
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            AttributesImpl attribs = new AttributesImpl();
+            addAttribute(attribs, "texts", metrics.getTexts());
+            addAttribute(attribs, "tokens", metrics.getTokens());
+            addAttribute(attribs, "load-time", registry.getTotalLoadTime());
+            addAttribute(attribs, "loaded-models", registry.getLoaded().size());
+            addAttribute(attribs, "model-memory", registry.getUsed());
+            addAttribute(attribs, "model-memory-budget", registry.getBudget());
+            attribs.addAttribute("", "result-cache-hit-rate", "result-cache-hit-rate", "CDATA",
+                    Double.toString(ResultCache.getInstance().getHitRate()));
+            final int nodeNr = builder.startElement("", "stats", "stats", attribs);
+            for (Map.Entry<String, Metrics.Timer> entry : metrics.getTimers().entrySet()) {
+                attribs = new AttributesImpl();
+                attribs.addAttribute("", "name", "name", "CDATA", entry.getKey());
+                addAttribute(attribs, "count", entry.getValue().getCount());
+                addAttribute(attribs, "time", entry.getValue().getTotal());
+                builder.startElement("", "timer", "timer", attribs);
+                builder.endElement();
+            }
+            for (Map.Entry<String, Metrics.Histogram> entry : metrics.getFunctions().entrySet()) {
+                final Metrics.Histogram histogram = entry.getValue();
+                attribs = new AttributesImpl();
+                attribs.addAttribute("", "name", "name", "CDATA", entry.getKey());
+                addAttribute(attribs, "calls", histogram.getCount());
+                addAttribute(attribs, "mean", histogram.getMean());
+                addAttribute(attribs, "p50", histogram.getPercentile(0.5));
+                addAttribute(attribs, "p90", histogram.getPercentile(0.9));
+                addAttribute(attribs, "p99", histogram.getPercentile(0.99));
+                addAttribute(attribs, "max", histogram.getMax());
+                builder.startElement("", "function", "function", attribs);
+                builder.endElement();
+            }
+            final IncrementalAnnotator annotator = IncrementalAnnotator.getInstance();
+            attribs = new AttributesImpl();
+            addAttribute(attribs, "pending", annotator.getPending());
+            addAttribute(attribs, "processed", annotator.getProcessed());
+            addAttribute(attribs, "failed", annotator.getFailed());
+            builder.startElement("", "trigger", "trigger", attribs);
+            builder.endElement();
+            attribs = new AttributesImpl();
+            addAttribute(attribs, "max-input-length", Limits.getMaxInputLength());
+            addAttribute(attribs, "max-concurrent", Limits.getMaxConcurrent());
+            addAttribute(attribs, "max-queued", Limits.getMaxQueued());
+            addAttribute(attribs, "timeout", Limits.getTimeout());
+            addAttribute(attribs, "active", Limits.getActive());
+            addAttribute(attribs, "queued", Limits.getQueued());
+            addAttribute(attribs, "rejected", Limits.getRejected());
+            addAttribute(attribs, "timeouts", Limits.getTimeouts());
+            addAttribute(attribs, "too-large", Limits.getTooLarge());
+            builder.startElement("", "limits", "limits", attribs);
+            builder.endElement();
+            builder.endElement();
+            return builder.getDocument().getNode(nodeNr);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    private static void addAttribute(AttributesImpl attribs, String name, long value) {
+        attribs.addAttribute("", name, name, "CDATA", Long.toString(value));
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ *   exist-stanford-ner: XQuery module to integrate the stanford named entity
+ *   extraction library with eXist-db.
+ *   Copyright (C) 2013 Wolfgang Meier and contributors
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.ner;
+
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.FunctionReference;
+import org.xml.sax.SAXException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the content of a block element (e.g. a paragraph), so the text of all its text nodes
+ * can be classified at once. Entities which are split across inline markup, like
+ * <code>&lt;hi&gt;New&lt;/hi&gt; York</code>, can thus be recognized.
+ *
+ * Markup events are recorded and replayed when the block is written. An entity is wrapped into
+ * one element if this does not break the nesting of the surrounding markup; the element may then
+ * enclose inline elements, e.g. <code>&lt;location&gt;&lt;hi&gt;New&lt;/hi&gt; York&lt;/location&gt;</code>.
+ * Otherwise each text fragment of the entity is wrapped separately.
+ */
+public class TextBlock {
+
+    private final static int TEXT = 0;
+    private final static int START_ELEMENT = 1;
+    private final static int END_ELEMENT = 2;
+    private final static int OTHER = 3;
+
+    private final List<Item> items = new ArrayList<>();
+    private final StringBuilder text = new StringBuilder();
+
+    /** view on the text of an item, passed to the {@link EntityWriter} */
+    private final Slice slice = new Slice();
+
+    public void addText(String s) {
+        if (s.length() > 0) {
+            items.add(new Item(TEXT, text.length(), s.length(), null));
+            text.append(s);
+        }
+    }
+
+    public void addText(char[] ch, int start, int length) {
+        if (length > 0) {
+            items.add(new Item(TEXT, text.length(), length, null));
+            text.append(ch, start, length);
+        }
+    }
+
+    public void addStartElement(SAXEvent event) {
+        items.add(new Item(START_ELEMENT, text.length(), 0, event));
+    }
+
+    public void addEndElement(SAXEvent event) {
+        items.add(new Item(END_ELEMENT, text.length(), 0, event));
+    }
+
+    public void addEvent(SAXEvent event) {
+        items.add(new Item(OTHER, text.length(), 0, event));
+    }
+
+    /**
+     * The number of characters in the block.
+     */
+    public int length() {
+        return text.length();
+    }
+
+    /**
+     * The concatenated text of the block.
+     */
+    public String getText() {
+        return text.toString();
+    }
+
+    /**
+     * Replay the recorded events without marking up entities.
+     */
+    public void replay(EntityWriter markup) throws SAXException {
+        for (Item item : items) {
+            if (item.kind != TEXT) {
+                item.event.replay();
+            } else {
+                markup.text(slice.of(item));
+            }
+        }
+    }
+
+    /**
+     * Replay the recorded events, marking up the given entities, whose offsets refer to
+     * {@link #getText()}.
+     */
+    public void write(List<EntitySpan> spans, EntityWriter markup) throws SAXException {
+        try {
+            write(spans, markup, null, null);
+        } catch (XPathException e) {
+            // only thrown by callbacks
+            throw new SAXException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replay the recorded events, marking up the given entities or, if callback is not null,
+     * replacing them with the output of the callback.
+     */
+    public void write(List<EntitySpan> spans, CallbackWriter markup, FunctionReference callback)
+            throws XPathException, SAXException {
+        write(spans, markup, markup, callback);
+    }
+
+    private void write(List<EntitySpan> spans, EntityWriter markup, CallbackWriter callbackWriter,
+                       FunctionReference callback) throws XPathException, SAXException {
+        final long start = System.nanoTime();
+        final long callbacks = callbackWriter == null ? 0 : callbackWriter.getCallbackTime();
+        try {
+            if (spans.isEmpty()) {
+                replay(markup);
+                return;
+            }
+            final List<Item> split = split(spans);
+
+            // for every item, the entities starting or ending before it
+            final int n = split.size();
+            final List<List<Integer>> opens = new ArrayList<>(n + 1);
+            final int[] closes = new int[n + 1];
+            for (int i = 0; i <= n; i++) {
+                opens.add(null);
+            }
+            // for every text item, the entity it belongs to if the entity is fragmented
+            final int[] fragmentOf = new int[n];
+            Arrays.fill(fragmentOf, -1);
+            final boolean[] called = new boolean[spans.size()];
+
+            int first = 0;
+            for (int s = 0; s < spans.size(); s++) {
+                final EntitySpan span = spans.get(s);
+                while (split.get(first).kind != TEXT || split.get(first).offset < span.getStart()) {
+                    first++;
+                }
+                int last = first;
+                for (int i = first; i < n && split.get(i).offset < span.getEnd(); i++) {
+                    if (split.get(i).kind == TEXT) {
+                        last = i;
+                    }
+                }
+                final int[] range = findBalanced(split, first, last);
+                if (range != null) {
+                    if (opens.get(range[0]) == null) {
+                        opens.set(range[0], new ArrayList<Integer>(1));
+                    }
+                    opens.get(range[0]).add(s);
+                    closes[range[1]]++;
+                } else {
+                    for (int i = first; i <= last; i++) {
+                        if (split.get(i).kind == TEXT) {
+                            fragmentOf[i] = s;
+                        }
+                    }
+                }
+                first = last + 1;
+            }
+
+            // callback output replaces a wrapped entity including any markup inside it
+            int suppressed = 0;
+            for (int i = 0; i <= n; i++) {
+                for (int c = 0; c < closes[i]; c++) {
+                    if (callback == null) {
+                        markup.endEntity();
+                    } else {
+                        suppressed--;
+                    }
+                }
+                if (opens.get(i) != null) {
+                    for (int s : opens.get(i)) {
+                        final EntitySpan span = spans.get(s);
+                        if (callback == null) {
+                            markup.startEntity(span.getType());
+                        } else {
+                            callbackWriter.callback(callback, span.getType(), getText(span));
+                            suppressed++;
+                        }
+                    }
+                }
+                if (i == n) {
+                    break;
+                }
+                final Item item = split.get(i);
+                if (item.kind != TEXT) {
+                    if (suppressed == 0) {
+                        item.event.replay();
+                    }
+                } else if (fragmentOf[i] > -1) {
+                    final EntitySpan span = spans.get(fragmentOf[i]);
+                    if (callback == null) {
+                        markup.startEntity(span.getType());
+                        markup.text(slice.of(item));
+                        markup.endEntity();
+                    } else if (!called[fragmentOf[i]]) {
+                        callbackWriter.callback(callback, span.getType(), getText(span));
+                        called[fragmentOf[i]] = true;
+                    }
+                } else if (suppressed == 0) {
+                    markup.text(slice.of(item));
+                }
+            }
+        } finally {
+            Metrics.getInstance().time(Metrics.MARKUP, start,
+                    callbackWriter == null ? 0 : callbackWriter.getCallbackTime() - callbacks);
+        }
+    }
+
+    private String getText(EntitySpan span) {
+        return text.substring(span.getStart(), span.getEnd());
+    }
+
+    /**
+     * Split text items at entity boundaries, so every entity starts and ends at an item boundary.
+     */
+    private List<Item> split(List<EntitySpan> spans) {
+        final List<Integer> boundaries = new ArrayList<>(spans.size() * 2);
+        for (EntitySpan span : spans) {
+            boundaries.add(span.getStart());
+            boundaries.add(span.getEnd());
+        }
+        final List<Item> split = new ArrayList<>(items.size() + boundaries.size());
+        int b = 0;
+        for (Item item : items) {
+            if (item.kind != TEXT) {
+                split.add(item);
+                continue;
+            }
+            final int end = item.offset + item.length;
+            int start = item.offset;
+            while (b < boundaries.size() && boundaries.get(b) <= start) {
+                b++;
+            }
+            if (b == boundaries.size() || boundaries.get(b) >= end) {
+                split.add(item);
+                continue;
+            }
+            while (b < boundaries.size() && boundaries.get(b) < end) {
+                final int boundary = boundaries.get(b++);
+                split.add(new Item(TEXT, start, boundary - start, null));
+                start = boundary;
+            }
+            split.add(new Item(TEXT, start, end - start, null));
+        }
+        return split;
+    }
+
+    /**
+     * Find positions to insert the start and end tag of an entity covering the text items
+     * first to last, so that the markup between them is balanced. The start tag may be moved
+     * before start tags directly preceding the first text item, the end tag after end tags
+     * directly following the last text item. Returns null if there are no such positions.
+     */
+    private static int[] findBalanced(List<Item> items, int first, int last) {
+        for (int start = first; start >= 0; start--) {
+            if (start < first && items.get(start).kind != START_ELEMENT) {
+                break;
+            }
+            for (int end = last + 1; end <= items.size(); end++) {
+                if (end > last + 1 && items.get(end - 1).kind != END_ELEMENT) {
+                    break;
+                }
+                if (isBalanced(items, start, end)) {
+                    return new int[] { start, end };
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isBalanced(List<Item> items, int start, int end) {
+        int level = 0;
+        for (int i = start; i < end; i++) {
+            final int kind = items.get(i).kind;
+            if (kind == START_ELEMENT) {
+                level++;
+            } else if (kind == END_ELEMENT && --level < 0) {
+                return false;
+            }
+        }
+        return level == 0;
+    }
+
+    private final static class Item {
+
+        final int kind;
+        final int offset;
+        final int length;
+        final SAXEvent event;
+
+        Item(int kind, int offset, int length, SAXEvent event) {
+            this.kind = kind;
+            this.offset = offset;
+            this.length = length;
+            this.event = event;
+        }
+    }
+
+    /**
+     * The text of one item, read directly from the text buffer instead of a copy.
+     */
+    private final class Slice implements CharSequence {
+
+        private int start;
+        private int end;
+
+        Slice of(Item item) {
+            start = item.offset;
+            end = item.offset + item.length;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return text.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return text.subSequence(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return text.substring(start, end);
+        }
+    }
+}